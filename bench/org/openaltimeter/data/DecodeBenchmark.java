@@ -0,0 +1,69 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Times decoding a log image entry by entry, as LogEntry.logEntryFromBytes does,
+// against V1FormatDecoder's bulk decode, and checks that the two agree. The
+// benchmarks aren't on the build path, so they don't end up in the jar. To run
+// this one against a built tree:
+//   javac -cp bin -d bench-bin bench/org/openaltimeter/data/*.java
+//   java -cp bin:bench-bin org.openaltimeter.data.DecodeBenchmark
+// There's no benchmark harness in lib, so it's timed by hand: each way is run
+// many times and the best run is reported, which keeps out warm up and GC.
+public class DecodeBenchmark {
+
+	private static final int ENTRIES = 104857;
+	private static final int RUNS = 200;
+
+	public static void main(String[] args) {
+		int n = ENTRIES;
+		byte[] image = new byte[n * LogEntry.DATASTORE_LOG_ENTRY_SIZE];
+		new Random(3).nextBytes(image);
+		// a sprinkling of EOF markers, as a real log would have between flights
+		for (int i = 0; i < n; i += 997) Arrays.fill(image, i * 5, i * 5 + 5, (byte)0xFF);
+		long[] p1 = new long[n], p2 = new long[n];
+		double[] t1 = new double[n], t2 = new double[n];
+		double[] b1 = new double[n], b2 = new double[n];
+		int[] s1 = new int[n], s2 = new int[n];
+		for (int round = 0; round < 3; round++) {
+			long perEntry = Long.MAX_VALUE;
+			long bulk = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < n; i++) {
+					LogEntry le = LogEntry.logEntryFromBytes(image, i * LogEntry.DATASTORE_LOG_ENTRY_SIZE);
+					p1[i] = le.pressure;
+					t1[i] = le.temperature;
+					b1[i] = le.battery;
+					s1[i] = le.servo;
+				}
+				perEntry = Math.min(perEntry, System.nanoTime() - start);
+				start = System.nanoTime();
+				V1FormatDecoder.decode(image, 0, n, p2, t2, b2, s2, 0);
+				bulk = Math.min(bulk, System.nanoTime() - start);
+			}
+			System.out.println(n + " entries: per entry " + perEntry / 1000 + " us, bulk " + bulk / 1000 + " us");
+		}
+		boolean same = Arrays.equals(p1, p2) && Arrays.equals(t1, t2) && Arrays.equals(b1, b2) && Arrays.equals(s1, s2);
+		System.out.println(same ? "Results agree." : "Results DIFFER.");
+	}
+}
@@ -0,0 +1,71 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Times parsing lines of a text log with the old split based parser against the
+// scanning one in RawDataParser, and checks that the two agree. Like the other
+// benchmarks it isn't on the build path, and is run in the same way:
+//   java -cp bin:bench-bin org.openaltimeter.data.ParseBenchmark
+public class ParseBenchmark {
+
+	private static final int LINES = 200000;
+	private static final int RUNS = 20;
+
+	public static void main(String[] args) {
+		List<String> lines = new ArrayList<String>(LINES);
+		Random r = new Random(5);
+		double p = 101000;
+		LogEntry le = new LogEntry();
+		for (int i = 0; i < LINES; i++) {
+			p += r.nextGaussian() * 20 + (100500 - p) * 0.001;
+			le.pressure = (long)p;
+			le.temperature = 20 + r.nextInt(40) * 0.25;
+			le.battery = 4 + r.nextInt(20) * 0.05;
+			le.servo = r.nextBoolean() ? 0 : 1000 + r.nextInt(100) * 8;
+			lines.add(le.rawDataToString());
+		}
+		LogEntry split = new LogEntry();
+		LogEntry scan = new LogEntry();
+		boolean same = true;
+		for (String line : lines) {
+			split.fromSplitRawData(line);
+			scan.fromRawData(line);
+			same &= split.pressure == scan.pressure && split.temperature == scan.temperature
+					&& split.battery == scan.battery && split.servo == scan.servo;
+		}
+		for (int round = 0; round < 3; round++) {
+			long splitTime = Long.MAX_VALUE;
+			long scanTime = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				for (String line : lines) split.fromSplitRawData(line);
+				splitTime = Math.min(splitTime, System.nanoTime() - start);
+				start = System.nanoTime();
+				for (String line : lines) scan.fromRawData(line);
+				scanTime = Math.min(scanTime, System.nanoTime() - start);
+			}
+			System.out.println(LINES + " lines: split " + splitTime / 1000 + " us, scan " + scanTime / 1000 + " us");
+		}
+		System.out.println(same ? "Results agree." : "Results DIFFER.");
+	}
+}
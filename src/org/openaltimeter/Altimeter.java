@@ -22,10 +22,14 @@ import gnu.io.NoSuchPortException;
 import gnu.io.PortInUseException;
 import gnu.io.UnsupportedCommOperationException;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.TooManyListenersException;
 
+import org.openaltimeter.comms.RecordListener;
 import org.openaltimeter.comms.SerialLink;
+import org.openaltimeter.comms.Transport;
 import org.openaltimeter.data.FlightLog;
 import org.openaltimeter.data.LogEntry;
 import org.openaltimeter.desktopapp.Controller;
@@ -33,34 +37,94 @@ import org.openaltimeter.settings.Settings;
 
 public class Altimeter {
 
-	// this timeout needs to be long enough for the longest download to finish.
-	private static final int TIMEOUT_LOOP_LIMIT = 1200;
+	// by default, a download is abandoned if no data arrives from the logger for this long.
+	private static final int DOWNLOAD_STALL_TIMEOUT_MS = 5000;
 	public static final int FLASH_MEMORY_SIZE = 512 * 1024;
+	// current firmware talks at BAUD_RATE, versions before V5 used the faster rate.
+	public static final int BAUD_RATE = 57600;
+	public static final int OLD_BAUD_RATE = 115200;
 	private static final int SETTINGS_MEMORY_SIZE = 512;	
+	// the longest we'll wait for the logger to start up and send its welcome message,
+	// and how long the line has to be quiet before we decide the message is complete.
+	private static final int STARTUP_TIMEOUT_MS = 16000;
+	private static final int WELCOME_QUIET_MS = 200;
+	private static final String WELCOME_BANNER = "openaltimeter";
+	// when probing a port, how long it has to be quiet after sending something other than
+	// the welcome message before we decide there's no altimeter there.
+	private static final int PROBE_NO_BANNER_QUIET_MS = 2000;
+	// settings reads give up if the logger stops sending for this long, and
+	// verifying written settings gives up after the longer timeout.
+	private static final int SETTINGS_STALL_TIMEOUT_MS = 1000;
+	private static final int SETTINGS_VERIFY_TIMEOUT_MS = 4000;
+	// the logger writes out what it has been sent after an upload, and we give it this
+	// long to do so before reading its reply.
+	private static final int UPLOAD_FINISH_MS = 15000;
 
-	private SerialLink serial;
+	private Transport serial;
 	public Settings settings;
 	public String firmwareVersion;
 	public int loggingPeriod;
+	// if this is set then downloads are cached, and skipped if there's no new data.
+	public DownloadCache downloadCache;
+	// if this is set then downloads are written to this file as they arrive, so that
+	// they can be recovered if anything goes wrong before the log is saved.
+	public File captureFile;
+	private String portName;
+	private int downloadStallTimeout = DOWNLOAD_STALL_TIMEOUT_MS;
+	
+	// unless told otherwise, progress and messages go to the main window.
+	private static final AltimeterListener WINDOW_LISTENER = new AltimeterListener() {
+		public void progress(int percentage) {
+			Controller.setProgress(percentage);
+		}
+		public void message(String message, String style) {
+			Controller.log(message, style);
+		}
+	};
+	private AltimeterListener listener;
 	
 	public Altimeter() {
-		serial = new SerialLink();
+		this(new SerialLink());
+	}
+	
+	public Altimeter(Transport transport) {
+		serial = transport;
+		setListener(WINDOW_LISTENER);
+	}
+	
+	public void setListener(AltimeterListener listener) {
+		this.listener = listener;
+		serial.setListener(listener);
+	}
+	
+	public void setDownloadStallTimeout(int stallTimeout) {
+		downloadStallTimeout = stallTimeout;
 	}
 
 	public String connect(String comPortName, int baudRate) throws NoSuchPortException,
 			PortInUseException, UnsupportedCommOperationException, IOException, NotAnOpenaltimeterException, TooManyListenersException {
+		return connect(comPortName, baudRate, false);
+	}
+	
+	// when probing we're only looking to see if there's an altimeter on the port, so we
+	// give up as soon as something other than the welcome message has been received.
+	String connect(String comPortName, int baudRate, boolean probing) throws NoSuchPortException,
+			PortInUseException, UnsupportedCommOperationException, IOException, NotAnOpenaltimeterException, TooManyListenersException {
 		// we reset the logger after opening the serial port, and then wait for
 		// the welcome message
 		serial.connect(comPortName, baudRate);
+		portName = comPortName;
 		reset();
-		// wait for the logger to start up
-		try {Thread.sleep(16000);} catch (Exception e) {};
-		// read the welcome message, check that the altimeter has responded
-		// send a command to stop logging.
+		// wait for the logger to start up and send its welcome message - most boards
+		// are ready well before the timeout.
+		String banner = serial.readBanner(WELCOME_BANNER, STARTUP_TIMEOUT_MS, WELCOME_QUIET_MS,
+				probing ? PROBE_NO_BANNER_QUIET_MS : 0);
+		// send a command to stop logging, and read anything else the logger has to say.
 		serial.write('c');
 		try {Thread.sleep(500);} catch (Exception e) {};
-		String welcomeString = serial.readString(2048);
-		if (!welcomeString.startsWith("openaltimeter")) {
+		// check that the altimeter has responded
+		String welcomeString = (banner + serial.readString(2048)).trim();
+		if (!welcomeString.startsWith(WELCOME_BANNER)) {
 			serial.disconnect();
 			throw new NotAnOpenaltimeterException();
 		}
@@ -93,6 +157,12 @@ public class Altimeter {
 	public void disconnect() {
 		serial.disconnect();
 	}
+	
+	// identifies the connected altimeter as well as we can for the download cache.
+	// The logger doesn't have a serial number, so this is the best we can do.
+	private String deviceKey() {
+		return portName + "-" + firmwareVersion;
+	}
 
 	public void reset() {
 		serial.sendReset();
@@ -104,38 +174,111 @@ public class Altimeter {
 		String[] infoStrings = fileInfo.split("\n");
 		String numberEntriesString = (infoStrings[1].split(":"))[1].trim();
 		int numberOfEntries = Integer.parseInt(numberEntriesString);
+		// there are numberOfEntries log entries, plus two file end markers.
+		final int numberOfRecords = numberOfEntries + 2;
+		// if the logger still has the same number of entries as the last time we
+		// downloaded it then nothing has been added, and we can use the cached copy.
+		if (downloadCache != null) {
+			byte[] cachedImage = downloadCache.get(deviceKey(), numberOfEntries);
+			if (cachedImage != null) {
+				listener.message("No new data since the last download - using the cached copy.", "message");
+				listener.progress(100);
+				return logFromImage(cachedImage, numberOfRecords);
+			}
+		}
 		// flush the input buffer and tell the logger to commence the upload
 		serial.clearInput();
 		// make sure the input stream is clear
-		while (serial.in.available() != 0) serial.clearInput();
-		// tell the logger to upload its data
-		serial.startBufferedRead(FLASH_MEMORY_SIZE * 2);
-		serial.write('d');
-		// loop, checking on the progress of the data upload, timeout if necessary
-		int timeoutCounter = 0;
-		while (serial.available() < (numberOfEntries + 2) * LogEntry.DATASTORE_LOG_ENTRY_SIZE ) {
-			int percentage = (int)((double)(100 * serial.available()) / (double)(numberOfEntries * LogEntry.DATASTORE_LOG_ENTRY_SIZE));
-			Controller.setProgress(percentage);
-			try { Thread.sleep(100); } catch (InterruptedException e) {}
-			if (timeoutCounter++ == TIMEOUT_LOOP_LIMIT) throw new DownloadTimeoutException();
+		while (serial.inputAvailable() != 0) serial.clearInput();
+		// the records are collected into an image as they arrive, and the log reads its
+		// entries straight out of that. Progress is reported from here too, whenever it changes.
+		final int expectedBytes = numberOfRecords * LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+		final byte[] image = new byte[expectedBytes];
+		final int[] recordCount = new int[1];
+		final CaptureFile capture = openCapture(numberOfRecords);
+		try {
+			serial.startBufferedRead(expectedBytes, LogEntry.DATASTORE_LOG_ENTRY_SIZE, new RecordListener() {
+				int lastPercentage = -1;
+				public void recordReceived(byte[] data, int offset) {
+					if (recordCount[0] >= numberOfRecords) return;
+					System.arraycopy(data, offset, image, recordCount[0] * LogEntry.DATASTORE_LOG_ENTRY_SIZE,
+							LogEntry.DATASTORE_LOG_ENTRY_SIZE);
+					if (capture != null) capture.write(data, offset, LogEntry.DATASTORE_LOG_ENTRY_SIZE);
+					int percentage = (int)((100L * ++recordCount[0]) / numberOfRecords);
+					if (percentage != lastPercentage) {
+						listener.progress(percentage);
+						lastPercentage = percentage;
+					}
+				}
+			});
+			// tell the logger to upload its data, and wait for it to finish
+			serial.write('d');
+			boolean complete = serial.waitForBufferedRead(downloadStallTimeout);
+			serial.stopBufferedRead();
+			if (!complete) throw new DownloadTimeoutException();
+			listener.progress(100);
+			// the logger doesn't send checksums, and any five bytes make an entry that the format
+			// can hold, so a garbled entry can't be told from a real one. What we can check is
+			// that the log ends with its two EOF markers where they should be. If they've moved,
+			// bytes were lost and others picked up on the way, and none of the entries in between
+			// can be trusted. Rather than guess at them, the download is failed and not cached.
+			if (!endsWithEOFMarkers(image, numberOfRecords)) {
+				listener.message("The downloaded data is corrupted. Check the serial connection and try again.",
+						"error");
+				throw new IOException("downloaded log image is misaligned");
+			}
+			if (downloadCache != null) {
+				try {
+					downloadCache.put(deviceKey(), numberOfEntries, image);
+				} catch (IOException e) {
+					// not being able to cache the download isn't a reason to fail it.
+					listener.message("Unable to cache downloaded data.", "error");
+				}
+			}
+			return logFromImage(image, numberOfRecords);
+		} finally {
+			if (capture != null) {
+				try {
+					capture.close();
+				} catch (IOException e) {
+					listener.message("Unable to write download capture file.", "error");
+				}
+			}
 		}
-		serial.stopBufferedRead();
-		Controller.setProgress(100);
-		// there are numberOfEntries log entries, plus two file end markers.
-		FlightLog log = new FlightLog();
-		byte[] data = serial.getBuffer();
-		for (int i = 0; i < numberOfEntries + 2; i++)
-		{
-			int os = i *LogEntry.DATASTORE_LOG_ENTRY_SIZE;
-			LogEntry le = LogEntry.logEntryFromBytes(data, os);
-			log.add(le);
+	}
+	
+	private static boolean endsWithEOFMarkers(byte[] image, int numberOfRecords) {
+		if (numberOfRecords < 2) return true;
+		for (int i = (numberOfRecords - 2) * LogEntry.DATASTORE_LOG_ENTRY_SIZE; i < image.length; i++) {
+			// the servo byte of an EOF marker isn't looked at when the log is decoded
+			if (i % LogEntry.DATASTORE_LOG_ENTRY_SIZE == 4) continue;
+			if (image[i] != (byte)0xFF) return false;
 		}
+		return true;
+	}
+	
+	// the capture is a nicety, so if it can't be made the download goes ahead without it.
+	private CaptureFile openCapture(int numberOfRecords) {
+		if (captureFile == null) return null;
+		try {
+			return new CaptureFile(captureFile, numberOfRecords, loggingPeriod);
+		} catch (IOException e) {
+			listener.message("Unable to create download capture file.", "error");
+			return null;
+		}
+	}
+	
+	private FlightLog logFromImage(byte[] image, int numberOfRecords) {
+		FlightLog log = FlightLog.fromRawImage(image, numberOfRecords);
 		log.calculateAltitudes();
 		log.logInterval = (double)loggingPeriod / 1000.0;
+		log.device = portName;
+		log.firmwareVersion = firmwareVersion;
 		return log;
 	}
 	
 	public String erase() throws IOException {
+		if (downloadCache != null) downloadCache.invalidate(deviceKey());
 		serial.clearInput();
 		serial.write("ee");
 		try {Thread.sleep(5000);} catch (Exception e) {};
@@ -145,28 +288,43 @@ public class Altimeter {
 	}
 	
 	public void readSettings() throws IOException {
+		settings = new Settings(readSettingsBytes());
+	}
+	
+	private byte[] readSettingsBytes() throws IOException {
 		serial.clearInput();
 		// make sure the input stream is clear
-		while (serial.in.available() != 0) serial.clearInput();
-		// tell the logger to upload its data
-		serial.startBufferedRead(SETTINGS_MEMORY_SIZE);
+		while (serial.inputAvailable() != 0) serial.clearInput();
+		// tell the logger to upload its settings, and wait for them to arrive
+		serial.startBufferedRead(Settings.SETTINGS_SIZE);
 		serial.write('r');
-		// cheesily just use a short delay
-		try {Thread.sleep(500);} catch (Exception e) {};
+		boolean complete = serial.waitForBufferedRead(SETTINGS_STALL_TIMEOUT_MS);
 		serial.stopBufferedRead();
-		settings = new Settings(serial.getBuffer());
+		if (!complete) throw new IOException("Timed out reading settings.");
+		byte[] settingsBytes = new byte[SETTINGS_MEMORY_SIZE];
+		serial.readBuffered(settingsBytes, 0, SETTINGS_MEMORY_SIZE);
+		return settingsBytes;
 	}
 
-	public void writeSettings() throws IOException
+	// writes the settings to the logger, and then reads them back to check that
+	// they were stored correctly. Returns true if they were.
+	public boolean writeSettings() throws IOException
 	{
 		serial.clearInput();
 		serial.write("ss");
-		byte[] settingsBytes = settings.toByteArray();
-		for (int i = 0; i < settingsBytes.length; i++) {
-			serial.write((char)settingsBytes[i]);
-			try {Thread.sleep(10);} catch (InterruptedException e) {}			
+		serial.write(settings.toByteArray());
+		// the logger might still be busy storing the settings when we first ask for
+		// them back, so we keep trying for a while.
+		long startTime = System.currentTimeMillis();
+		while (System.currentTimeMillis() - startTime < SETTINGS_VERIFY_TIMEOUT_MS) {
+			try {
+				if (settings.equals(new Settings(readSettingsBytes()))) return true;
+			} catch (IOException e) {
+				// no reply yet, try again.
+			}
+			try {Thread.sleep(100);} catch (InterruptedException e) {}
 		}
-		try {Thread.sleep(4000);} catch (InterruptedException e) {}
+		return false;
 	}
 
 
@@ -177,20 +335,18 @@ public class Altimeter {
 	}
 	
 	public void upload(String dataToUpload) throws IOException{
+		upload(Uploader.textCommands(dataToUpload));
+	}
+	
+	private void upload(List<byte[]> commands) throws IOException{
 		erase();
 		serial.clearInput();
-		String[] lines = dataToUpload.split("\n");
-		for (String line : lines) {
-			serial.write('u');
-			serial.write(line + "*");
-			System.out.println("u" + line + "*");
-			try {Thread.sleep(150);} catch (InterruptedException e) {}		
-		}
-		//serial.clearInput();
+		new Uploader(serial).upload(commands);
+		// only the logger's reply to finishing the upload is shown
+		serial.clearInput();
 		serial.write('o');
-		try {Thread.sleep(15000);} catch (InterruptedException e) {}		
-		Controller.log(serial.readString(2048), "altimeter");
-
+		try {Thread.sleep(UPLOAD_FINISH_MS);} catch (InterruptedException e) {}
+		listener.message(serial.readString(2048), "altimeter");
 	}
 	
 	@SuppressWarnings("serial")
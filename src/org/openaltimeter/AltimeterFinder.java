@@ -0,0 +1,106 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Looks for an altimeter on a number of serial ports at once. Each port is tried
+// at the current baud rate and then at the old one, as a port can't be opened at
+// two rates at the same time, but the ports are all tried in parallel. The first
+// altimeter to reply with its welcome message wins, and is left connected.
+public class AltimeterFinder {
+
+	// the most ports we'll try at once.
+	private static final int MAX_PROBES = 8;
+	private static final int[] BAUD_RATES = {Altimeter.BAUD_RATE, Altimeter.OLD_BAUD_RATE};
+
+	public static class Result {
+		public final Altimeter altimeter;
+		public final String portName;
+		public final int baudRate;
+		public final String welcomeMessage;
+
+		Result(Altimeter altimeter, String portName, int baudRate, String welcomeMessage) {
+			this.altimeter = altimeter;
+			this.portName = portName;
+			this.baudRate = baudRate;
+			this.welcomeMessage = welcomeMessage;
+		}
+	}
+
+	// returns the first altimeter found, or null if there isn't one on any of the ports.
+	public Result find(List<String> portNames) throws InterruptedException {
+		if (portNames.isEmpty()) return null;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PROBES, portNames.size()));
+		ExecutorCompletionService<Result> probes = new ExecutorCompletionService<Result>(executor);
+		final AtomicBoolean found = new AtomicBoolean(false);
+		for (final String portName : portNames) {
+			probes.submit(new Callable<Result>() {
+				public Result call() {
+					return probe(portName, found);
+				}
+			});
+		}
+		// any probes still running will notice that we're done and tidy up after themselves.
+		executor.shutdown();
+		try {
+			for (int i = 0; i < portNames.size(); i++) {
+				Result result = probes.take().get();
+				if (result != null) return result;
+			}
+		} catch (ExecutionException e) {
+			// probe() doesn't throw, so this can't happen.
+			throw new RuntimeException(e);
+		}
+		return null;
+	}
+
+	// makes an altimeter for the probes to use - this can be overridden to find
+	// altimeters on some other sort of transport.
+	protected Altimeter createAltimeter() {
+		return new Altimeter();
+	}
+
+	private Result probe(String portName, AtomicBoolean found) {
+		for (int baudRate : BAUD_RATES) {
+			if (found.get()) return null;
+			Altimeter altimeter = createAltimeter();
+			boolean keep = false;
+			try {
+				String welcomeMessage = altimeter.connect(portName, baudRate, true);
+				// only the first altimeter found gets to stay connected.
+				if (!found.compareAndSet(false, true)) return null;
+				keep = true;
+				return new Result(altimeter, portName, baudRate, welcomeMessage);
+			} catch (Exception e) {
+				// it's not an altimeter, or we couldn't open the port - either way, move on.
+			} finally {
+				// the port has to be closed before it can be tried at the next rate.
+				if (!keep) altimeter.disconnect();
+			}
+		}
+		return null;
+	}
+}
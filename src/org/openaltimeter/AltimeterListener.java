@@ -0,0 +1,30 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+// Receives progress reports and messages from an Altimeter, and from the link
+// that it's using. These calls can come from any thread.
+public interface AltimeterListener {
+
+	// the progress of the current operation, in percent.
+	public void progress(int percentage);
+
+	// a message for the user - the style is one of the main window's log styles.
+	public void message(String message, String style);
+}
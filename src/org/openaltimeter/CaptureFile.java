@@ -0,0 +1,130 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.openaltimeter.data.FlightLog;
+import org.openaltimeter.data.LogEntry;
+
+// A copy of a download that is written to disk as the data arrives, so that if
+// the app dies before the log is saved it can be recovered without downloading
+// it again. Each record is written to the file as it arrives, so it is with the
+// OS, which will flush it out even if we crash. The file has a short header: a magic
+// number, the number of records expected, the number of bytes received so far
+// and the logging period in ms. The records follow in the logger's storage format.
+public class CaptureFile {
+
+	private static final int MAGIC = 0x4F414346;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECEIVED_POSITION = 8;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int capacity;
+	private final ByteBuffer count = ByteBuffer.allocate(4);
+	private int received = 0;
+	// a write that fails can't be reported from the serial event thread, so it's kept
+	// for close() to throw, and nothing more is written.
+	private IOException error;
+
+	// creates the capture file, replacing any that's already there.
+	public CaptureFile(File f, int numberOfRecords, int loggingPeriod) throws IOException {
+		File directory = f.getAbsoluteFile().getParentFile();
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Unable to create capture directory " + directory);
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		capacity = numberOfRecords * LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+		try {
+			file.setLength(HEADER_SIZE);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(numberOfRecords);
+			header.putInt(0);
+			header.putInt(loggingPeriod);
+			header.flip();
+			writeFully(header, 0);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	// appends bytes received from the logger. Anything beyond the expected size is
+	// dropped. This is called for each record on the serial event thread, so it
+	// mustn't block.
+	public void write(byte[] data, int offset, int len) {
+		len = Math.min(len, capacity - received);
+		if (len <= 0 || error != null) return;
+		try {
+			writeFully(ByteBuffer.wrap(data, offset, len), HEADER_SIZE + received);
+			received += len;
+			// the count goes in after the data, so it never covers bytes we haven't written
+			count.clear();
+			count.putInt(0, received);
+			writeFully(count, RECEIVED_POSITION);
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			if (error == null) channel.force(false);
+		} finally {
+			file.close();
+		}
+		if (error != null) throw error;
+	}
+
+	private void writeFully(ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) position += channel.write(b, position);
+	}
+
+	// rebuilds the log from a capture file. If the download didn't finish, the log
+	// holds the entries that did arrive. The records are read in one go and the log
+	// decodes them as it needs them. They aren't left mapped, as on Windows a mapped
+	// file can't be replaced, which would stop the next download being captured.
+	public static FlightLog load(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long size = file.length();
+			if (size < HEADER_SIZE || file.readInt() != MAGIC) throw new IOException("Not a capture file.");
+			// the number of records expected, which we don't need
+			file.readInt();
+			int received = (int)Math.min(file.readInt(), size - HEADER_SIZE);
+			if (received < 0) throw new IOException("Corrupt capture file.");
+			int loggingPeriod = file.readInt();
+			int numberOfRecords = received / LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+			byte[] image = new byte[numberOfRecords * LogEntry.DATASTORE_LOG_ENTRY_SIZE];
+			file.readFully(image);
+			FlightLog log = FlightLog.fromRawImage(image, numberOfRecords);
+			log.calculateAltitudes();
+			log.logInterval = (double)loggingPeriod / 1000.0;
+			return log;
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Keeps a copy of the last flash image downloaded from each altimeter, along
+// with the number of log entries it held. The logger only ever appends to its
+// memory until it is erased, so if it reports the same number of entries as
+// the cached image then its memory hasn't changed and the download can be
+// skipped. Erasing the logger from here invalidates the cache, but it can't
+// know about erases done elsewhere, so the device key should be as specific as
+// we can make it.
+public class DownloadCache {
+
+	private final File directory;
+
+	public DownloadCache(File directory) {
+		this.directory = directory;
+	}
+
+	// returns the cached image for the device, or null if there isn't one that
+	// holds exactly numberOfEntries entries.
+	public byte[] get(String deviceKey, int numberOfEntries) {
+		File f = fileForDevice(deviceKey);
+		if (!f.exists()) return null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (dis.readInt() != numberOfEntries) return null;
+			byte[] image = new byte[dis.readInt()];
+			dis.readFully(image);
+			return image;
+		} catch (IOException e) {
+			// a damaged cache file is just treated as a miss.
+			return null;
+		} finally {
+			if (dis != null) try { dis.close(); } catch (IOException e) {}
+		}
+	}
+
+	public void put(String deviceKey, int numberOfEntries, byte[] image) throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Unable to create cache directory " + directory);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileForDevice(deviceKey))));
+		try {
+			dos.writeInt(numberOfEntries);
+			dos.writeInt(image.length);
+			dos.write(image);
+		} finally {
+			dos.close();
+		}
+	}
+
+	public void invalidate(String deviceKey) {
+		File f = fileForDevice(deviceKey);
+		if (f.exists()) f.delete();
+	}
+
+	// forgets every device.
+	public void clear() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File f : files) if (f.getName().endsWith(".cache")) f.delete();
+	}
+
+	private File fileForDevice(String deviceKey) {
+		// serial port names are full of characters that aren't safe in filenames.
+		return new File(directory, deviceKey.replaceAll("[^A-Za-z0-9_.-]", "_") + ".cache");
+	}
+}
@@ -0,0 +1,153 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openaltimeter.data.FlightLog;
+
+// Downloads from a number of altimeters at once, each on its own serial port.
+// Each download is a Session, which connects to its altimeter, downloads the log
+// and disconnects again, keeping track of its own progress and result.
+public class DownloadManager {
+
+	public enum State {WAITING, CONNECTING, DOWNLOADING, DONE, FAILED}
+
+	public interface SessionListener {
+		// called whenever the session's state or progress changes, or it has a message.
+		public void sessionChanged(Session session, String message, String style);
+	}
+
+	public class Session implements AltimeterListener, Runnable {
+		public final String portName;
+		private final SessionListener listener;
+		private volatile State state = State.WAITING;
+		private volatile int progress = 0;
+		private volatile FlightLog flightLog;
+		private volatile String error;
+
+		Session(String portName, SessionListener listener) {
+			this.portName = portName;
+			this.listener = listener;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public int getProgress() {
+			return progress;
+		}
+
+		// the downloaded log - only available once the session is DONE.
+		public FlightLog getFlightLog() {
+			return flightLog;
+		}
+
+		// why the session FAILED.
+		public String getError() {
+			return error;
+		}
+
+		public void run() {
+			Altimeter altimeter = createAltimeter();
+			altimeter.setListener(this);
+			altimeter.downloadCache = downloadCache;
+			altimeter.setDownloadStallTimeout(stallTimeout);
+			try {
+				setState(State.CONNECTING);
+				altimeter.connect(portName, Altimeter.BAUD_RATE);
+				setState(State.DOWNLOADING);
+				flightLog = altimeter.downloadData();
+				setState(State.DONE);
+			} catch (Altimeter.NotAnOpenaltimeterException e) {
+				fail("No altimeter found.");
+			} catch (Altimeter.DownloadTimeoutException e) {
+				fail("The altimeter stopped sending data.");
+			} catch (Exception e) {
+				fail("Unable to communicate with the altimeter.");
+			} finally {
+				// connect() can open the port and then fail, so this is always done.
+				altimeter.disconnect();
+			}
+		}
+
+		public void progress(int percentage) {
+			progress = percentage;
+			listener.sessionChanged(this, null, null);
+		}
+
+		public void message(String message, String style) {
+			listener.sessionChanged(this, message, style);
+		}
+
+		private void setState(State newState) {
+			state = newState;
+			listener.sessionChanged(this, null, null);
+		}
+
+		private void fail(String reason) {
+			error = reason;
+			setState(State.FAILED);
+		}
+	}
+
+	private final ExecutorService executor;
+	private final List<Session> sessions = Collections.synchronizedList(new ArrayList<Session>());
+	private final int stallTimeout;
+	public DownloadCache downloadCache;
+
+	// at most maxConcurrent downloads will run at once, and each one is abandoned if its
+	// altimeter stops sending data for stallTimeout ms.
+	public DownloadManager(int maxConcurrent, int stallTimeout) {
+		executor = Executors.newFixedThreadPool(maxConcurrent);
+		this.stallTimeout = stallTimeout;
+	}
+
+	// starts a download from the altimeter on the given port.
+	public Session download(String portName, SessionListener listener) {
+		Session session = new Session(portName, listener);
+		sessions.add(session);
+		executor.execute(session);
+		return session;
+	}
+
+	public List<Session> getSessions() {
+		synchronized (sessions) {
+			return new ArrayList<Session>(sessions);
+		}
+	}
+
+	// waits for all of the downloads to finish. No more can be started after this.
+	public void awaitCompletion() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	// makes the altimeter for each session - this can be overridden to download from
+	// altimeters on some other sort of transport.
+	protected Altimeter createAltimeter() {
+		return new Altimeter();
+	}
+}
@@ -0,0 +1,56 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openaltimeter.comms.Transport;
+
+// Sends a sequence of upload commands to the logger. The firmware doesn't acknowledge
+// upload commands, so they're sent at a fixed rate, which is known to be slow enough
+// for the logger to keep up.
+public class Uploader {
+
+	// the gap between commands.
+	private static final int COMMAND_INTERVAL_MS = 150;
+
+	private final Transport serial;
+
+	public Uploader(Transport serial) {
+		this.serial = serial;
+	}
+
+	// one command per line of the text upload format.
+	public static List<byte[]> textCommands(String dataToUpload) {
+		List<byte[]> commands = new ArrayList<byte[]>();
+		for (String line : dataToUpload.split("\n"))
+			commands.add(("u" + line + "*").getBytes(Charset.forName("ASCII")));
+		return commands;
+	}
+
+	public void upload(List<byte[]> commands) throws IOException {
+		for (byte[] command : commands) {
+			serial.write(command);
+			try {Thread.sleep(COMMAND_INTERVAL_MS);} catch (InterruptedException e) {}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// A fixed size circular byte buffer, with one thread filling it and another
+// draining it. The two ends only communicate through the write and read
+// counters, which each only ever get written by one side, so no locking is
+// needed as long as there is just one producer and one consumer.
+public class RingBuffer {
+
+	private final byte[] data;
+	// these count the total number of bytes that have ever been written and
+	// read. The positions in the data array are these modulo its length.
+	private volatile long writeCount;
+	private volatile long readCount;
+
+	public RingBuffer(int capacity) {
+		data = new byte[capacity];
+	}
+
+	// this must only be called when neither the producer nor the consumer is active.
+	public void clear() {
+		writeCount = 0;
+		readCount = 0;
+	}
+
+	public int capacity() {
+		return data.length;
+	}
+
+	// the number of bytes waiting to be read.
+	public int available() {
+		return (int)(writeCount - readCount);
+	}
+
+	// the total number of bytes written since the buffer was last cleared.
+	public long totalWritten() {
+		return writeCount;
+	}
+
+	// fills the buffer from the stream using block reads, taking whatever the
+	// stream has available without blocking. Stops early if the buffer fills
+	// up. Returns the number of bytes read.
+	public int fill(InputStream in) throws IOException {
+		int total = 0;
+		int streamAvailable;
+		while ((streamAvailable = in.available()) > 0) {
+			int free = data.length - available();
+			if (free == 0) break;
+			int pos = (int)(writeCount % data.length);
+			int len = Math.min(Math.min(streamAvailable, free), data.length - pos);
+			int n = in.read(data, pos, len);
+			if (n <= 0) break;
+			writeCount += n;
+			total += n;
+		}
+		return total;
+	}
+
+	// copies up to len bytes out of the buffer, advancing the read cursor.
+	// Returns the number of bytes actually copied.
+	public int read(byte[] dest, int offset, int len) {
+		int n = Math.min(len, available());
+		int pos = (int)(readCount % data.length);
+		int firstPart = Math.min(n, data.length - pos);
+		System.arraycopy(data, pos, dest, offset, firstPart);
+		System.arraycopy(data, 0, dest, offset + firstPart, n - firstPart);
+		readCount += n;
+		return n;
+	}
+}
@@ -27,21 +27,14 @@ import gnu.io.SerialPortEventListener;
 import gnu.io.UnsupportedCommOperationException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.TooManyListenersException;
 import java.util.Vector;
 
-import org.openaltimeter.desktopapp.Controller;
-
-public class SerialLink {
+public class SerialLink extends StreamLink {
 
 	private SerialPort sp;
-	public InputStream in;
-	private OutputStream out;
 
 	public static List<String> getSerialPorts() {
 		@SuppressWarnings("unchecked")
@@ -61,12 +54,7 @@ public class SerialLink {
 		sp.addEventListener(new SerialPortEventListener() {
 			@Override
 			public void serialEvent(SerialPortEvent arg0) {
-				try {
-					while (in.available() > 0) buffer[bufferPos++] = (byte)in.read();
-				} catch (IOException e) {
-					// we can't throw this exception, so the best we can do is log it and carry on.
-					Controller.log("Error reading serial stream. Try downloading again.", "error");
-				}
+				dataAvailable();
 			}
 		});
 //		sp.setInputBufferSize(Altimeter.FLASH_MEMORY_SIZE + 1024);
@@ -74,8 +62,11 @@ public class SerialLink {
 		out = sp.getOutputStream();
 	}
 
+	// safe to call if the port was never opened, or has already been closed.
 	public void disconnect() {
+		if (sp == null) return;
 		sp.close();
+		sp = null;
 	}
 
 	public void sendReset() {
@@ -87,55 +78,7 @@ public class SerialLink {
 		sp.setDTR(true);
 	}
 
-	// we'll often want to remove junk from the input buffer before exchanging
-	// data with the logger. This method does just that.
-	public void clearInput() {
-		try { in.skip(in.available()); } catch (IOException e) {}
-	}
-	
-	public void write(char c) throws IOException
-	{
-		out.write(c);
-	}
-	
-	public void write(String s) throws IOException
-	{
-		char[] chars = s.toCharArray();
-		for (char c : chars) out.write(c);
-	}
-	
-	public String readString(int bufferSize) throws IOException
-	{
-		byte[] inputBuffer = new byte[bufferSize];
-		in.read(inputBuffer, 0, bufferSize);
-		return new String(inputBuffer, Charset.forName("ASCII")).trim();
-	}
-	
-	private byte[] buffer;
-	private int bufferPos;
-	
-	// this method and the following three implement a very simple buffered read.
-	// It shouldn't be necessary to do this, as java has buffered streams, but I
-	// simply couldn't get them to work well with rxtx.
-	public void startBufferedRead(int bufferSize)
-	{
-		buffer = new byte[bufferSize];
-		bufferPos = 0;
-		sp.notifyOnDataAvailable(true);
-	}
-	
-	public void stopBufferedRead()
-	{
-		sp.notifyOnDataAvailable(false);
-	}
-	
-	public int available()
-	{
-		return bufferPos;
-	}
-	
-	public byte[] getBuffer()
-	{
-		return buffer;
+	protected void setNotifyOnDataAvailable(boolean notify) {
+		sp.notifyOnDataAvailable(notify);
 	}
 }
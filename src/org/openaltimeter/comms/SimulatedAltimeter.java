@@ -0,0 +1,311 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.openaltimeter.data.LogEntry;
+import org.openaltimeter.settings.Settings;
+import org.openaltimeter.settings.Settings.Action;
+import org.openaltimeter.settings.Settings.BatteryType;
+
+// A pure software openaltimeter, for trying out the downloader without any
+// hardware attached. It understands the same commands as the real firmware,
+// and sends its replies at the given baud rate after the given latency, so it
+// can be used to benchmark and test the code that talks to the altimeter.
+// Connecting at a different baud rate from the simulated one gives garbled
+// data, just like the real thing.
+public class SimulatedAltimeter extends StreamLink {
+
+	public static final String FIRMWARE_VERSION = "V8";
+	// these are queued up with the incoming command bytes to mark a reset.
+	private static final int RESET = -1;
+	// the data is sent in a burst every tick, at an average rate set by the baud rate.
+	private static final int TICK_MS = 10;
+	// serial data is sent as 10 bits per byte, including the start and stop bits.
+	private static final int BITS_PER_BYTE = 10;
+
+	private final int baudRate;
+	private final int latency;
+	private int bootTime = 1000;
+	private volatile int connectedRate;
+
+	// the log entries in the simulated flash memory, not including the two file
+	// end markers that are sent at the end of a download.
+	private byte[] flash = new byte[0];
+	private int flashLength = 0;
+	private byte[] settingsBytes = defaultSettings().toByteArray();
+
+	private final ByteQueue toHost = new ByteQueue();
+	private final LinkedBlockingQueue<Integer> fromHost = new LinkedBlockingQueue<Integer>();
+	private volatile boolean notifyOnDataAvailable;
+	private volatile boolean resetPending;
+	private Thread device;
+
+	public SimulatedAltimeter(int baudRate, int latency) {
+		this.baudRate = baudRate;
+		this.latency = latency;
+		in = toHost;
+		out = new OutputStream() {
+			public void write(int b) {
+				fromHost.add(b & 0xFF);
+			}
+		};
+	}
+
+	// the time the simulated board takes to start up after a reset.
+	public void setBootTime(int bootTime) {
+		this.bootTime = bootTime;
+	}
+
+	// sets the contents of the simulated flash memory - a sequence of log entries in
+	// the logger's storage format, without the file end markers that follow them.
+	public synchronized void setFlashImage(byte[] image) {
+		flash = image.clone();
+		flashLength = image.length;
+	}
+
+	public void connect(String port, int rate) {
+		connectedRate = rate;
+		toHost.clear();
+		fromHost.clear();
+		device = new Thread(new Runnable() {
+			public void run() {
+				try {
+					runDevice();
+				} catch (InterruptedException e) {
+					// the simulated altimeter has been disconnected.
+				}
+			}
+		}, "simulated altimeter " + port);
+		device.setDaemon(true);
+		device.start();
+	}
+
+	public void disconnect() {
+		if (device != null) device.interrupt();
+		device = null;
+	}
+
+	public void sendReset() {
+		resetPending = true;
+		fromHost.clear();
+		clearInput();
+		fromHost.add(RESET);
+	}
+
+	protected void setNotifyOnDataAvailable(boolean notify) {
+		notifyOnDataAvailable = notify;
+	}
+
+	// the simulated firmware's main loop - this runs on its own thread, taking
+	// commands from the host and sending the replies.
+	private void runDevice() throws InterruptedException {
+		int command = fromHost.take();
+		while (true) {
+			int next = RESET;
+			switch (command) {
+			case RESET:
+				resetPending = false;
+				Thread.sleep(bootTime);
+				send(welcomeMessage());
+				break;
+			case 'i':
+				send(fileInfo());
+				break;
+			case 'd':
+				send(download());
+				break;
+			case 'r':
+				send(settingsBytes.clone());
+				break;
+			case 's':
+				if ((next = fromHost.take()) != 's') break;
+				byte[] newSettings = new byte[Settings.SETTINGS_SIZE];
+				int i;
+				for (i = 0; i < newSettings.length && (next = fromHost.take()) != RESET; i++)
+					newSettings[i] = (byte)next;
+				if (i == newSettings.length) settingsBytes = newSettings;
+				break;
+			case 'w':
+				if ((next = fromHost.take()) == 'w') settingsBytes = defaultSettings().toByteArray();
+				break;
+			case 'e':
+				if ((next = fromHost.take()) != 'e') break;
+				synchronized (this) { flashLength = 0; }
+				send(text("Erasing flash memory ...\r\nDone.\r\n"));
+				break;
+			case 'u':
+				StringBuilder line = new StringBuilder();
+				while ((next = fromHost.take()) != '*' && next != RESET) line.append((char)next);
+				if (next == '*') appendUploadedEntry(line.toString());
+				break;
+			case 'o':
+				send(text("Upload finished.\r\n"));
+				break;
+			default:
+				// 'c' and anything unrecognised are quietly ignored.
+				break;
+			}
+			// a reset in the middle of a command has to be dealt with straight away.
+			command = (next == RESET && resetPending) ? RESET : fromHost.take();
+		}
+	}
+
+	// sends data back to the host, at the simulated baud rate. Sending is abandoned
+	// if the board is reset.
+	private void send(byte[] data) throws InterruptedException {
+		Thread.sleep(latency);
+		boolean garbled = connectedRate != baudRate;
+		int bytesPerTick = Math.max(1, (baudRate / BITS_PER_BYTE) * TICK_MS / 1000);
+		long nextTick = System.currentTimeMillis();
+		for (int pos = 0; pos < data.length && !resetPending; pos += bytesPerTick) {
+			int n = Math.min(bytesPerTick, data.length - pos);
+			if (garbled) for (int i = pos; i < pos + n; i++) data[i] ^= 0x55;
+			toHost.put(data, pos, n);
+			if (notifyOnDataAvailable) dataAvailable();
+			nextTick += TICK_MS;
+			long wait = nextTick - System.currentTimeMillis();
+			if (wait > 0) Thread.sleep(wait);
+		}
+	}
+
+	private byte[] welcomeMessage() {
+		int entries;
+		synchronized (this) { entries = flashLength / LogEntry.DATASTORE_LOG_ENTRY_SIZE; }
+		return text("openaltimeter: " + FIRMWARE_VERSION + "\r\n" +
+				"Simulated altimeter\r\n" +
+				"Baud rate: " + baudRate + "\r\n" +
+				"Log entries: " + entries + "\r\n" +
+				"Log interval: " + new Settings(settingsBytes).logIntervalMS + "\r\n" +
+				"Send c to enter command mode.\r\n");
+	}
+
+	private synchronized byte[] fileInfo() {
+		return text("Log information\r\n" +
+				"Number of entries: " + (flashLength / LogEntry.DATASTORE_LOG_ENTRY_SIZE) + "\r\n");
+	}
+
+	// the log entries, followed by two file end markers.
+	private synchronized byte[] download() {
+		byte[] data = new byte[flashLength + 2 * LogEntry.DATASTORE_LOG_ENTRY_SIZE];
+		System.arraycopy(flash, 0, data, 0, flashLength);
+		for (int i = flashLength; i < data.length; i++) data[i] = (byte)0xFF;
+		return data;
+	}
+
+	// uploaded entries are in the text upload format, with the temperature and
+	// battery voltage multiplied by 100.
+	private synchronized void appendUploadedEntry(String line) {
+		LogEntry le = new LogEntry();
+		le.fromRawData(line.trim());
+		le.temperature /= 100.0;
+		le.battery /= 100.0;
+		if (flashLength + LogEntry.DATASTORE_LOG_ENTRY_SIZE > flash.length) {
+			byte[] newFlash = new byte[Math.max(1024, flash.length * 2)];
+			System.arraycopy(flash, 0, newFlash, 0, flashLength);
+			flash = newFlash;
+		}
+		le.toBytes(flash, flashLength);
+		flashLength += LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+	}
+
+	private static Settings defaultSettings() {
+		Settings s = new Settings();
+		s.logIntervalMS = 500;
+		s.heightUnits = 3.28f;
+		s.batteryType = BatteryType.NONE;
+		s.lowVoltageThreshold = 3.3f;
+		s.batteryMonitorCalibration = 1.0f;
+		s.logServo = false;
+		s.midPositionAction = Action.DO_NOTHING;
+		s.onPositionAction = Action.DO_NOTHING;
+		return s;
+	}
+
+	private static byte[] text(String s) {
+		return s.getBytes(Charset.forName("ASCII"));
+	}
+
+	// the simulated serial input buffer. Like a serial port with a receive timeout,
+	// reads wait a short while for data, and then give up.
+	private static class ByteQueue extends InputStream {
+		private static final int READ_TIMEOUT_MS = 100;
+		private byte[] data = new byte[4096];
+		private int head = 0;
+		private int count = 0;
+
+		synchronized void put(byte[] b, int offset, int len) {
+			if (head + count + len > data.length) {
+				byte[] newData = data.length < count + len ? new byte[Math.max(data.length * 2, count + len)] : data;
+				System.arraycopy(data, head, newData, 0, count);
+				data = newData;
+				head = 0;
+			}
+			System.arraycopy(b, offset, data, head + count, len);
+			count += len;
+			notifyAll();
+		}
+
+		synchronized void clear() {
+			head = 0;
+			count = 0;
+		}
+
+		public synchronized int available() {
+			return count;
+		}
+
+		public synchronized int read() throws IOException {
+			waitForData();
+			if (count == 0) return -1;
+			count--;
+			return data[head++] & 0xFF;
+		}
+
+		public synchronized int read(byte[] b, int offset, int len) throws IOException {
+			waitForData();
+			int n = Math.min(len, count);
+			System.arraycopy(data, head, b, offset, n);
+			head += n;
+			count -= n;
+			return n;
+		}
+
+		public synchronized long skip(long n) {
+			int skipped = (int)Math.min(n, count);
+			head += skipped;
+			count -= skipped;
+			return skipped;
+		}
+
+		private void waitForData() throws IOException {
+			if (count > 0) return;
+			try {
+				wait(READ_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for data");
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openaltimeter.AltimeterListener;
+
+// The parts of a Transport that only depend on having a pair of streams to the
+// altimeter. Subclasses set up the streams, and arrange for dataAvailable() to
+// be called when data arrives during a buffered read.
+public abstract class StreamLink implements Transport {
+
+	protected InputStream in;
+	protected OutputStream out;
+	private AltimeterListener listener;
+
+	// turns on or off calls to dataAvailable().
+	protected abstract void setNotifyOnDataAvailable(boolean notify);
+
+	public void setListener(AltimeterListener listener) {
+		this.listener = listener;
+	}
+	
+	// we'll often want to remove junk from the input buffer before exchanging
+	// data with the logger. This method does just that.
+	public void clearInput() {
+		try { in.skip(in.available()); } catch (IOException e) {}
+	}
+	
+	public int inputAvailable() throws IOException
+	{
+		return in.available();
+	}
+	
+	public void write(char c) throws IOException
+	{
+		out.write(c);
+	}
+	
+	public void write(String s) throws IOException
+	{
+		char[] chars = s.toCharArray();
+		for (char c : chars) out.write(c);
+	}
+	
+	// sends the bytes as a single block.
+	public void write(byte[] bytes) throws IOException
+	{
+		out.write(bytes);
+		out.flush();
+	}
+	
+	public String readString(int bufferSize) throws IOException
+	{
+		byte[] inputBuffer = new byte[bufferSize];
+		in.read(inputBuffer, 0, bufferSize);
+		return new String(inputBuffer, Charset.forName("ASCII")).trim();
+	}
+	
+	// watches the incoming data for a banner - some text starting with bannerStart - and
+	// returns it as soon as it's complete, that is once the port has been quiet for
+	// quietTime ms after the banner started. Anything received before the banner is
+	// discarded. If no complete banner arrives within timeout ms then whatever has been
+	// received is returned, and it's up to the caller to decide what to do with it. If
+	// giveUpQuietTime isn't zero, the same happens as soon as other data arrives and is
+	// followed by that long of silence - that's what a baud rate mismatch usually looks
+	// like, but junk followed by a slow start-up can look the same, so it's only worth
+	// giving up early when we're just looking to see if there's an altimeter there.
+	public String readBanner(String bannerStart, long timeout, long quietTime, long giveUpQuietTime) throws IOException
+	{
+		StringBuilder received = new StringBuilder();
+		byte[] chunk = new byte[256];
+		long startTime = System.currentTimeMillis();
+		long lastDataTime = startTime;
+		while (System.currentTimeMillis() - startTime < timeout) {
+			int n = Math.min(in.available(), chunk.length);
+			if (n > 0) n = in.read(chunk, 0, n);
+			if (n > 0) {
+				received.append(new String(chunk, 0, n, Charset.forName("ASCII")));
+				lastDataTime = System.currentTimeMillis();
+			} else {
+				int bannerPos = received.indexOf(bannerStart);
+				long quiet = System.currentTimeMillis() - lastDataTime;
+				if (bannerPos >= 0 && received.length() > 0 && quiet >= quietTime)
+					return received.substring(bannerPos);
+				// something has been sent, but not the banner
+				if (giveUpQuietTime > 0 && bannerPos < 0 && received.length() > 0 && quiet >= giveUpQuietTime)
+					return received.toString();
+				try {Thread.sleep(10);} catch (InterruptedException e) {}
+			}
+		}
+		return received.toString();
+	}
+	
+	// the buffer is allocated once and reused for every buffered read on this link.
+	// Records are handed to the listener in blocks, through the scratch array.
+	private static final int RING_BUFFER_SIZE = 64 * 1024;
+	private final RingBuffer ring = new RingBuffer(RING_BUFFER_SIZE);
+	private byte[] recordScratch;
+	private RecordListener recordListener;
+	private int recordSize;
+	private int expectedBytes;
+	private CountDownLatch bufferedReadComplete;
+	private volatile long lastDataTime;
+	
+	// this method and the following four implement a very simple buffered read.
+	// It shouldn't be necessary to do this, as java has buffered streams, but I
+	// simply couldn't get them to work well with rxtx. Without a listener, at most
+	// RING_BUFFER_SIZE bytes can be waiting to be read at any one time.
+	public void startBufferedRead(int expectedBytes)
+	{
+		startBufferedRead(expectedBytes, 0, null);
+	}
+	
+	// a streaming version of the buffered read - the listener is passed each
+	// recordSize-byte record as soon as it has been completely received. The read
+	// is complete when expectedBytes have arrived (see waitForBufferedRead).
+	public void startBufferedRead(int expectedBytes, int recordSize, RecordListener listener)
+	{
+		ring.clear();
+		this.expectedBytes = expectedBytes;
+		this.recordSize = recordSize;
+		if (listener != null) {
+			int scratchSize = (RING_BUFFER_SIZE / recordSize) * recordSize;
+			if (recordScratch == null || recordScratch.length != scratchSize) recordScratch = new byte[scratchSize];
+		}
+		recordListener = listener;
+		bufferedReadComplete = new CountDownLatch(1);
+		lastDataTime = System.currentTimeMillis();
+		setNotifyOnDataAvailable(true);
+	}
+	
+	// implementations call this whenever new data arrives while notification is on.
+	protected void dataAvailable()
+	{
+		try {
+			// keep filling and draining until the port is empty - the buffer may
+			// fill up more than once on a large read if there's a listener draining it.
+			RecordListener listener = recordListener;
+			do {
+				ring.fill(in);
+				if (listener != null) deliverRecords(listener);
+			} while (in.available() > 0 && ring.available() < ring.capacity());
+			// more data may have arrived since the loop's last look, which is fine as long
+			// as there's still room for it - we'll be called again to read it.
+			if (ring.available() == ring.capacity() && in.available() > 0)
+				reportError("Serial buffer overflow. Try downloading again.");
+			lastDataTime = System.currentTimeMillis();
+			if (ring.totalWritten() >= expectedBytes) bufferedReadComplete.countDown();
+		} catch (IOException e) {
+			// we can't throw this exception, so the best we can do is log it and carry on.
+			reportError("Error reading serial stream. Try downloading again.");
+		}
+	}
+	
+	private void reportError(String message)
+	{
+		if (listener != null) listener.message(message, "error");
+	}
+	
+	// called from the serial event thread to pass complete records to the listener.
+	private void deliverRecords(RecordListener listener)
+	{
+		int completeBytes = (ring.available() / recordSize) * recordSize;
+		while (completeBytes > 0) {
+			int n = ring.read(recordScratch, 0, Math.min(completeBytes, recordScratch.length));
+			for (int os = 0; os < n; os += recordSize) listener.recordReceived(recordScratch, os);
+			completeBytes -= n;
+		}
+	}
+	
+	// waits until the buffered read has received all of the bytes it was expecting,
+	// returning true, or until the link stalls, returning false. The link is
+	// considered stalled when no data has arrived for stallTimeout ms, so a slow
+	// but steady transfer will never time out.
+	public boolean waitForBufferedRead(long stallTimeout)
+	{
+		try {
+			while (bufferedReadComplete.getCount() != 0) {
+				long remaining = stallTimeout - (System.currentTimeMillis() - lastDataTime);
+				if (remaining <= 0) return false;
+				bufferedReadComplete.await(remaining, TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	public void stopBufferedRead()
+	{
+		setNotifyOnDataAvailable(false);
+		recordListener = null;
+	}
+	
+	// the number of bytes received by the buffered read that haven't yet been read.
+	public int available()
+	{
+		return ring.available();
+	}
+	
+	// reads bytes received by the buffered read, advancing the read cursor. This can
+	// be called while the read is in progress. Returns the number of bytes read.
+	public int readBuffered(byte[] dest, int offset, int len)
+	{
+		return ring.read(dest, offset, len);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.comms;
+
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.util.TooManyListenersException;
+
+import org.openaltimeter.AltimeterListener;
+
+// The link between the downloader and an altimeter. SerialLink is the real
+// thing, SimulatedAltimeter stands in for it when there's no hardware around.
+public interface Transport {
+
+	public void connect(String port, int rate) throws NoSuchPortException,
+			PortInUseException, UnsupportedCommOperationException, IOException, TooManyListenersException;
+
+	public void disconnect();
+
+	// errors that can't be reported any other way are passed to the listener.
+	public void setListener(AltimeterListener listener);
+
+	// resets the altimeter, which will then restart and send its welcome message.
+	public void sendReset();
+
+	public void clearInput();
+
+	// the number of bytes waiting to be read directly, that is outside of a buffered read.
+	public int inputAvailable() throws IOException;
+
+	public void write(char c) throws IOException;
+
+	public void write(String s) throws IOException;
+
+	public void write(byte[] bytes) throws IOException;
+
+	public String readString(int bufferSize) throws IOException;
+
+	public String readBanner(String bannerStart, long timeout, long quietTime, long giveUpQuietTime) throws IOException;
+
+	public void startBufferedRead(int expectedBytes);
+
+	public void startBufferedRead(int expectedBytes, int recordSize, RecordListener listener);
+
+	public boolean waitForBufferedRead(long stallTimeout);
+
+	public void stopBufferedRead();
+
+	public int available();
+
+	public int readBuffered(byte[] dest, int offset, int len);
+}
@@ -21,9 +21,46 @@ package org.openaltimeter.data;
 
 public class AltitudeConverter {
 	
+	private static final double EXPONENT = 1/5.25;
+	
 	public static double altitudeMFromPressure(long pressure, double basePressure)
 	{
-		return 44330.0 * (1 - Math.pow(pressure / basePressure, 1/5.25));
+		return 44330.0 * (1 - Math.pow(pressure / basePressure, EXPONENT));
+	}
+	
+	// converts pressures[from] to pressures[to - 1] into altitudes, all with the same base
+	// pressure. (p / b)^x is p^x * b^-x, so with a table of p^x for every pressure that
+	// the logger can record, each conversion is a lookup and a multiply. The results
+	// agree with altitudeMFromPressure to within a few parts in 10^12 of a metre.
+	// Pressures outside the table, which only come from text files, are worked out
+	// in full.
+	public static void altitudesMFromPressures(long[] pressures, int from, int to, double basePressure,
+			double[] altitudes)
+	{
+		altitudesMFromPressures(pressures, from, to, basePressure, altitudes, from);
+	}
+	
+	// as above, but the altitudes go into the array starting at dest.
+	public static void altitudesMFromPressures(long[] pressures, int from, int to, double basePressure,
+			double[] altitudes, int dest)
+	{
+		double[] table = PowerTable.VALUES;
+		double scale = Math.pow(basePressure, -EXPONENT);
+		for (int i = from, d = dest; i < to; i++, d++) {
+			long index = pressures[i] - PowerTable.FIRST_PRESSURE;
+			if (index >= 0 && index < table.length) altitudes[d] = 44330.0 * (1 - table[(int)index] * scale);
+			else altitudes[d] = altitudeMFromPressure(pressures[i], basePressure);
+		}
+	}
+	
+	// the logger stores pressure as a 16 bit offset from 101325 Pa. The table is
+	// only made when it's first needed, and is then shared by every log.
+	private static class PowerTable {
+		static final long FIRST_PRESSURE = 101325 + Short.MIN_VALUE;
+		static final double[] VALUES = new double[65536];
+		static {
+			for (int i = 0; i < VALUES.length; i++) VALUES[i] = Math.pow(FIRST_PRESSURE + i, EXPONENT);
+		}
 	}
 	
 	public static double feetFromM(double altitudeM)
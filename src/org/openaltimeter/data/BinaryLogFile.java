@@ -0,0 +1,161 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// A binary file format for flight logs. The entries are kept as the logger's own 5 byte
+// records, so a file is about a seventh of the size of the text format and can be opened
+// without parsing anything - the records are read in one go and the log decodes them as
+// it needs them. The header (big-endian) has a magic number, the format version, the size
+// of the header, the number of records, the logging interval in s, the device and the
+// firmware version, and a table of the recording segments - start, end and base pressure
+// of each, as indices into the saved records - so other tools can find them without
+// reading the records. The records start at the header size, so fields can be added to
+// the end of the header without changing the version, and old readers skip over them.
+// The version only changes if the file can no longer be read that way.
+// The text format is still the one to use for swapping logs with other programs.
+public class BinaryLogFile {
+
+	public static final String EXTENSION = "oalog";
+
+	private static final int MAGIC = 0x4F414C47;
+	private static final int VERSION = 1;
+	private static final int SIZE = LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+
+	// saves the entries lower..upper - 1 of the log. Only logs that can be stored exactly
+	// in the logger's format can be saved - that's any that came from an altimeter - and
+	// an IOException is thrown for any others.
+	public static void save(File f, FlightLog log, int lower, int upper) throws IOException {
+		if (lower < 0) lower = 0;
+		if (upper > log.size()) upper = log.size();
+		byte[] records = toRecords(log, lower, upper);
+		int numberOfRecords = records.length / SIZE;
+		SegmentIndex segments = segmentsOf(records);
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeUTF(log.device);
+		header.writeUTF(log.firmwareVersion);
+		header.writeInt(segments.getSegmentCount());
+		for (int s = 0; s < segments.getSegmentCount(); s++) {
+			header.writeInt(segments.getStart(s));
+			header.writeInt(segments.getEnd(s));
+			header.writeDouble(segments.getBasePressure(s));
+		}
+		header.close();
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// magic, version, header size, number of records and interval come first
+			out.writeInt(24 + headerBytes.size());
+			out.writeInt(numberOfRecords);
+			out.writeDouble(log.logInterval);
+			headerBytes.writeTo(out);
+			out.write(records);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void save(File f, FlightLog log) throws IOException {
+		save(f, log, 0, log.size());
+	}
+
+	// the entries lower..upper - 1 of the log in the logger's format, which must be able
+	// to hold them exactly. This is shared with LogArchive.
+	static byte[] toRecords(FlightLog log, int lower, int upper) throws IOException {
+		int numberOfRecords = Math.max(0, upper - lower);
+		byte[] records = new byte[numberOfRecords * SIZE];
+		for (int i = 0; i < numberOfRecords; i++) {
+			LogEntry le = log.get(lower + i);
+			le.toBytes(records, i * SIZE);
+			if (!storedExactly(le, records, i * SIZE))
+				throw new IOException("Entry " + (lower + i) + " can't be stored exactly in the logger's format.");
+		}
+		return records;
+	}
+
+	static SegmentIndex segmentsOf(byte[] records) {
+		long[] pressures = new long[records.length / SIZE];
+		V1FormatDecoder.decode(records, 0, pressures.length, pressures, null, null, null, 0);
+		return new SegmentIndex(pressures, FlightLog.BASE_PRESSURE_SAMPLES);
+	}
+
+	// the empty entry is stored as all ones, whatever its other values were.
+	private static boolean storedExactly(LogEntry le, byte[] b, int os) {
+		LogEntry stored = LogEntry.logEntryFromBytes(b, os);
+		if (le.pressure == FlightLog.PRESSURE_EMPTY_DATA) return true;
+		return stored.pressure == le.pressure && stored.temperature == le.temperature
+				&& stored.battery == le.battery && stored.servo == le.servo;
+	}
+
+	public static boolean isBinaryLogFile(File f) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "r");
+			try {
+				return file.length() >= 4 && file.readInt() == MAGIC;
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// opens a log saved in the binary format. The records aren't left mapped, as on
+	// Windows a mapped file can't be saved over, and if the file were changed while
+	// the log was open, reading it would crash.
+	public static FlightLog load(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long size = file.length();
+			if (size < 24 || file.readInt() != MAGIC) throw new IOException("Not a binary log file.");
+			int version = file.readInt();
+			if (version > VERSION) throw new IOException("The log was saved by a newer version of the downloader.");
+			int headerSize = file.readInt();
+			int numberOfRecords = file.readInt();
+			// a damaged header mustn't be trusted to size the records
+			if (headerSize < 24 || numberOfRecords < 0 || headerSize + (long)numberOfRecords * SIZE > size)
+				throw new IOException("Corrupt binary log file.");
+			double logInterval = file.readDouble();
+			String device = file.readUTF();
+			String firmwareVersion = file.readUTF();
+			// the segment table is for other tools - the log indexes its own segments
+			byte[] records = new byte[numberOfRecords * SIZE];
+			file.seek(headerSize);
+			file.readFully(records);
+			FlightLog log = FlightLog.fromRawImage(records, numberOfRecords);
+			log.logInterval = logInterval;
+			log.device = device;
+			log.firmwareVersion = firmwareVersion;
+			log.calculateAltitudes();
+			return log;
+		} finally {
+			file.close();
+		}
+	}
+}
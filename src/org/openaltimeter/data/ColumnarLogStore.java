@@ -0,0 +1,192 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.util.Arrays;
+
+import org.openaltimeter.TypeConverter;
+
+// Stores a log's entries as columns of primitives, rather than as LogEntry objects.
+// Each value is kept in the logger's own compact form - an offset from 101325 Pa for
+// the pressure and a byte for each of the others - so an entry costs 5 bytes
+// instead of the fifty or so that a LogEntry takes. Logs loaded from text files can
+// have values that the compact form can't represent exactly. When one turns up its
+// column is widened to a full size array, so nothing is ever lost.
+public class ColumnarLogStore implements LogStore {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int size = 0;
+	private short[] pressureRaw = new short[INITIAL_CAPACITY];
+	private byte[] temperatureRaw = new byte[INITIAL_CAPACITY];
+	private byte[] batteryRaw = new byte[INITIAL_CAPACITY];
+	private byte[] servoRaw = new byte[INITIAL_CAPACITY];
+	// the widened columns, which are null until they're needed.
+	private long[] pressure;
+	private double[] temperature;
+	private double[] battery;
+	private int[] servo;
+	private final byte[] scratch = new byte[LogEntry.DATASTORE_LOG_ENTRY_SIZE];
+
+	public int size() {
+		return size;
+	}
+
+	public long getPressure(int i) {
+		if (pressure != null) return pressure[i];
+		return compactPressure(i);
+	}
+
+	public double getTemperature(int i) {
+		if (temperature != null) return temperature[i];
+		return compactTemperature(i);
+	}
+
+	public double getBattery(int i) {
+		if (battery != null) return battery[i];
+		return compactBattery(i);
+	}
+
+	public int getServo(int i) {
+		if (servo != null) return servo[i];
+		return compactServo(i);
+	}
+
+	public void getValues(int from, int count, long[] pressure, double[] temperature, double[] battery, int[] servo) {
+		for (int i = 0; i < count; i++) {
+			int j = from + i;
+			boolean empty = isEmpty(j);
+			if (pressure != null)
+				pressure[i] = (this.pressure != null) ? this.pressure[j]
+						: empty ? FlightLog.PRESSURE_EMPTY_DATA : LogEntry.pressureFromV1(pressureRaw[j]);
+			if (temperature != null)
+				temperature[i] = (this.temperature != null) ? this.temperature[j]
+						: empty ? -1 : V1FormatDecoder.TEMPERATURE[unsigned(temperatureRaw[j])];
+			if (battery != null)
+				battery[i] = (this.battery != null) ? this.battery[j]
+						: empty ? -1 : V1FormatDecoder.BATTERY[unsigned(batteryRaw[j])];
+			if (servo != null)
+				servo[i] = (this.servo != null) ? this.servo[j]
+						: empty ? -1 : V1FormatDecoder.SERVO[unsigned(servoRaw[j])];
+		}
+	}
+
+	public void add(byte[] b, int os) {
+		if (size == pressureRaw.length) grow();
+		int i = size++;
+		pressureRaw[i] = TypeConverter.bytesToSignedShort(b[os + 0], b[os + 1]);
+		temperatureRaw[i] = b[os + 2];
+		batteryRaw[i] = b[os + 3];
+		servoRaw[i] = b[os + 4];
+		if (pressure != null) pressure[i] = compactPressure(i);
+		if (temperature != null) temperature[i] = compactTemperature(i);
+		if (battery != null) battery[i] = compactBattery(i);
+		if (servo != null) servo[i] = compactServo(i);
+	}
+
+	// the entry is stored in its compact form, and then any values that didn't
+	// survive the trip are stored again in the widened columns. Doubles are compared by
+	// their bits, so that -0.0 isn't taken for 0.0.
+	public void add(LogEntry entry) {
+		entry.toBytes(scratch, 0);
+		add(scratch, 0);
+		int i = size - 1;
+		if (compactPressure(i) != entry.pressure) {
+			if (pressure == null) widenPressure();
+			pressure[i] = entry.pressure;
+		}
+		if (!sameBits(compactTemperature(i), entry.temperature)) {
+			if (temperature == null) widenTemperature();
+			temperature[i] = entry.temperature;
+		}
+		if (!sameBits(compactBattery(i), entry.battery)) {
+			if (battery == null) widenBattery();
+			battery[i] = entry.battery;
+		}
+		if (compactServo(i) != entry.servo) {
+			if (servo == null) widenServo();
+			servo[i] = entry.servo;
+		}
+	}
+
+	private static boolean sameBits(double a, double b) {
+		return Double.doubleToRawLongBits(a) == Double.doubleToRawLongBits(b);
+	}
+
+	private boolean isEmpty(int i) {
+		return LogEntry.isEmptyV1Entry(pressureRaw[i], unsigned(temperatureRaw[i]), unsigned(batteryRaw[i]));
+	}
+
+	private long compactPressure(int i) {
+		if (isEmpty(i)) return FlightLog.PRESSURE_EMPTY_DATA;
+		return LogEntry.pressureFromV1(pressureRaw[i]);
+	}
+
+	private double compactTemperature(int i) {
+		if (isEmpty(i)) return -1;
+		return LogEntry.temperatureFromV1(unsigned(temperatureRaw[i]));
+	}
+
+	private double compactBattery(int i) {
+		if (isEmpty(i)) return -1;
+		return LogEntry.batteryFromV1(unsigned(batteryRaw[i]));
+	}
+
+	private int compactServo(int i) {
+		if (isEmpty(i)) return -1;
+		return LogEntry.servoFromV1(unsigned(servoRaw[i]));
+	}
+
+	private static int unsigned(byte b) {
+		return b & 0xFF;
+	}
+
+	// the columns double in size whenever they fill up.
+	private void grow() {
+		int capacity = pressureRaw.length * 2;
+		pressureRaw = Arrays.copyOf(pressureRaw, capacity);
+		temperatureRaw = Arrays.copyOf(temperatureRaw, capacity);
+		batteryRaw = Arrays.copyOf(batteryRaw, capacity);
+		servoRaw = Arrays.copyOf(servoRaw, capacity);
+		if (pressure != null) pressure = Arrays.copyOf(pressure, capacity);
+		if (temperature != null) temperature = Arrays.copyOf(temperature, capacity);
+		if (battery != null) battery = Arrays.copyOf(battery, capacity);
+		if (servo != null) servo = Arrays.copyOf(servo, capacity);
+	}
+
+	private void widenPressure() {
+		pressure = new long[pressureRaw.length];
+		for (int i = 0; i < size; i++) pressure[i] = compactPressure(i);
+	}
+
+	private void widenTemperature() {
+		temperature = new double[pressureRaw.length];
+		for (int i = 0; i < size; i++) temperature[i] = compactTemperature(i);
+	}
+
+	private void widenBattery() {
+		battery = new double[pressureRaw.length];
+		for (int i = 0; i < size; i++) battery[i] = compactBattery(i);
+	}
+
+	private void widenServo() {
+		servo = new int[pressureRaw.length];
+		for (int i = 0; i < size; i++) servo[i] = compactServo(i);
+	}
+}
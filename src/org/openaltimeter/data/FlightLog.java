@@ -19,26 +19,103 @@
 
 package org.openaltimeter.data;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class FlightLog {
  
-	public ArrayList<LogEntry> logData = new ArrayList<LogEntry>();
+	// the entries are kept in a LogStore rather than as LogEntry objects, which
+	// makes a big difference to the memory used by large logs.
+	private LogStore logData;
 	public double logInterval = 0.5;
+	// where the log came from, if we know.
+	public String device = "";
+	public String firmwareVersion = "";
 	// altitudes are initially calculated from the pressure data, but can be
 	// subsequently modified by analysis functions. Altitudes are stored in meters.
-	public double[] altitudes;
+	// The array grows as entries are added, so only the first altitudesLength are used.
+	private double[] altitudes;
+	private int altitudesLength = 0;
+	// when entries are added, only the new ones need their altitudes working out. The
+	// exception is the last segment, which is still open: its base pressure comes from
+	// its first few entries, so until it has them all it's worked out again each time.
+	private int altitudesSettled = 0;
+	private int openSegmentStart = 0;
+	private double openSegmentBase = 0;
+	// the series derived from the entries, which are worked out when they're first
+	// asked for and kept until the log changes. They're shared, so mustn't be modified.
+	private boolean seriesValid = false;
+	private double[] batterySeries;
+	private double[] temperatureSeries;
+	private double[] servoSeries;
+	private List<Integer> eofIndices;
+	private SegmentIndex segmentIndex;
 	
-	private static final int BASE_PRESSURE_SAMPLES = 20;
+	static final int BASE_PRESSURE_SAMPLES = 20;
+	// logs with more entries than this have their altitudes calculated in parallel,
+	// in batches of about this many.
+	private static final int PARALLEL_BATCH_SIZE = 32768;
 	public static final long PRESSURE_EMPTY_DATA = -1;
 	
+	public FlightLog() {
+		this(new ColumnarLogStore());
+	}
+	
+	public FlightLog(LogStore logData) {
+		this.logData = logData;
+	}
+	
+	// makes a log that reads its entries straight out of an image in the logger's
+	// storage format, without unpacking it. If entries are added to it later, they
+	// are copied out of the image first.
+	public static FlightLog fromRawImage(byte[] image, int numberOfRecords) {
+		return new FlightLog(new RawImageLogStore(image, numberOfRecords));
+	}
+	
+	// a store that reads straight out of an image can't be added to, so the first
+	// time an entry is added the log switches to a copy that can.
+	private LogStore appendableStore() {
+		if (logData instanceof RawImageLogStore) logData = ((RawImageLogStore)logData).toColumnarLogStore();
+		return logData;
+	}
+	
 	public void add(LogEntry entry) {
-		logData.add(entry);
+		appendableStore().add(entry);
+		invalidateSeries();
+	}
+	
+	// adds an entry in the logger's storage format.
+	public void add(byte[] b, int os) {
+		appendableStore().add(b, os);
+		invalidateSeries();
+	}
+	
+	public int size() {
+		return logData.size();
+	}
+	
+	// makes a LogEntry holding the values of the i'th entry. Changing it doesn't change the log.
+	public LogEntry get(int i) {
+		LogEntry le = new LogEntry();
+		le.pressure = logData.getPressure(i);
+		le.temperature = logData.getTemperature(i);
+		le.battery = logData.getBattery(i);
+		le.servo = logData.getServo(i);
+		if (altitudes != null && i < altitudesLength) le.altitude = altitudes[i];
+		return le;
 	}
 	
 	// method for calculating base pressure for data starting at startIndex
@@ -48,10 +125,10 @@ public class FlightLog {
 		double basePressure = 0;
 		for (int i = startIndex; (i < startIndex + BASE_PRESSURE_SAMPLES) && (i < logData.size()); i++)
 		{
-			LogEntry le = logData.get(i);
-			if (le.pressure != PRESSURE_EMPTY_DATA) {
+			long pressure = logData.getPressure(i);
+			if (pressure != PRESSURE_EMPTY_DATA) {
 				count++;
-				basePressure += le.pressure;
+				basePressure += pressure;
 			}
 			else
 				break;
@@ -61,103 +138,239 @@ public class FlightLog {
 	}
 	
 	// this method takes the raw log data and converts it into altitude data
-	// the curious-looking logic in the middle makes sure that the base pressure is
-	// reset whenever an EOF marker is encountered.
+	// the base pressure is reset whenever an EOF marker is encountered, so each run
+	// of entries between markers is converted separately, with its own base pressure.
+	// The markers themselves have zero altitude.
 	public void calculateAltitudes()
 	{
-		double basePressure = 0;
+		final long[] pressures = getPressures();
+		int numPoints = pressures.length;
+		final double[] result = new double[numPoints];
+		altitudes = result;
 		
-		for (int i = 0; i < logData.size(); i++)
-		{
-			LogEntry le = logData.get(i);
-			
-			if (le.pressure != PRESSURE_EMPTY_DATA) {
-				if (basePressure == 0) 
-					basePressure = calculateBasePressure(i);
-				
-				le.altitude = AltitudeConverter.altitudeMFromPressure(le.pressure, basePressure);
+		// as the segments are independent, big logs with lots of them are split up
+		// into batches of whole segments, which are converted in parallel.
+		List<Callable<Object>> batches = new ArrayList<Callable<Object>>();
+		int from = 0;
+		while (numPoints >= PARALLEL_BATCH_SIZE && from < numPoints) {
+			int to = Math.min(numPoints, from + PARALLEL_BATCH_SIZE);
+			while (to < numPoints && pressures[to] != PRESSURE_EMPTY_DATA) to++;
+			final int batchFrom = from;
+			final int batchTo = to;
+			batches.add(Executors.callable(new Runnable() {
+				public void run() {
+					calculateAltitudes(pressures, batchFrom, batchTo, result);
+				}
+			}));
+			from = to;
+		}
+		boolean calculated = false;
+		if (batches.size() > 1) {
+			try {
+				for (Future<Object> f : AltitudePool.EXECUTOR.invokeAll(batches)) f.get();
+				calculated = true;
+			} catch (InterruptedException e) {
+				// we still need the altitudes, so fall through and work them out here
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
 			}
-			else 
-				basePressure = 0;
 		}
-		
+		if (!calculated) calculateAltitudes(pressures, 0, numPoints, result);
+		altitudesCalculated(pressures, 0, numPoints);
+	}
+	
+	// works out the altitudes of the entries that have been added since they were last
+	// calculated, carrying on with the open segment's base pressure. If they've never
+	// been calculated, they're all worked out.
+	public void updateAltitudes()
+	{
 		int numPoints = logData.size();
-		altitudes = new double[numPoints];
-		for (int i = 0; i < numPoints; i++) 
-			altitudes[i] = logData.get(i).pressure != PRESSURE_EMPTY_DATA ? logData.get(i).altitude : 0;
+		if (altitudes == null) {
+			calculateAltitudes();
+			return;
+		}
+		if (altitudesLength == numPoints) return;
+		int first = altitudesSettled;
+		// the array grows geometrically, so that adding entries one at a time doesn't
+		// copy it every time.
+		if (altitudes.length < numPoints) altitudes = Arrays.copyOf(altitudes, Math.max(numPoints, 2 * altitudes.length));
+		long[] pressures = new long[numPoints - first];
+		logData.getValues(first, pressures.length, pressures, null, null, null);
+		double carriedBase = (first > openSegmentStart) ? openSegmentBase : 0;
+		convertSegments(pressures, first, first, numPoints, carriedBase, altitudes);
+		altitudesCalculated(pressures, first, numPoints);
+	}
+	
+	// converts the entries from..to - 1, which must start at the beginning of a segment.
+	private void calculateAltitudes(long[] pressures, int from, int to, double[] result)
+	{
+		convertSegments(pressures, 0, from, to, 0, result);
+	}
+	
+	// converts the entries from..to - 1, where pressures[0] is the pressure of entry first.
+	// If carriedBase isn't zero then the entries start part way through a segment with
+	// that base pressure, otherwise they start at the beginning of one.
+	private void convertSegments(long[] pressures, int first, int from, int to, double carriedBase, double[] result)
+	{
+		int i = from;
+		while (i < to)
+		{
+			if (pressures[i - first] == PRESSURE_EMPTY_DATA) {
+				result[i] = 0;
+				i++;
+				continue;
+			}
+			int end = i;
+			while (end < to && pressures[end - first] != PRESSURE_EMPTY_DATA) end++;
+			double basePressure = (i == from && carriedBase != 0) ? carriedBase : calculateBasePressure(i);
+			AltitudeConverter.altitudesMFromPressures(pressures, i - first, end - first, basePressure, result, i);
+			i = end;
+		}
+	}
+	
+	// keeps track of the open segment once the altitudes are up to date. pressures[0] is
+	// the pressure of entry first, and there are numPoints entries in all.
+	private void altitudesCalculated(long[] pressures, int first, int numPoints)
+	{
+		altitudesLength = numPoints;
+		int start = numPoints;
+		while (start > first && pressures[start - 1 - first] != PRESSURE_EMPTY_DATA) start--;
+		// if there's no EOF marker in the new entries, the open segment just carries on
+		if (start > first || first == 0) openSegmentStart = start;
+		openSegmentBase = (openSegmentStart < numPoints) ? calculateBasePressure(openSegmentStart) : 0;
+		altitudesSettled = (numPoints - openSegmentStart < BASE_PRESSURE_SAMPLES) ? openSegmentStart : numPoints;
 	}
 
 	
+	// the threads for calculating altitudes, one for each processor. They're daemons so
+	// that they don't keep the app running.
+	private static class AltitudePool {
+		static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "altitude calculation");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	private long[] getPressures() {
+		long[] pressures = new long[logData.size()];
+		logData.getValues(0, pressures.length, pressures, null, null, null);
+		return pressures;
+	}
+	
+	// any entries added since the altitudes were calculated have theirs worked out first.
 	public double[] getAltitude() {
-		return altitudes;
+		if (altitudes == null) return null;
+		updateAltitudes();
+		if (altitudes.length == altitudesLength) return altitudes;
+		return Arrays.copyOf(altitudes, altitudesLength);
+	}
+	
+	// the altitude of a single entry. Unlike getAltitude(), this doesn't copy the whole
+	// array, so it's the one to use when following a log as it grows.
+	public double getAltitude(int i) {
+		updateAltitudes();
+		return altitudes[i];
 	}
 	
 	public void setAltitude(double[] altData) {
 		altitudes = altData;	
+		altitudesLength = altData.length;
+		// if the new altitudes don't cover the settled ones, it's simplest to start again
+		if (altitudesLength < altitudesSettled) {
+			altitudesSettled = 0;
+			openSegmentStart = 0;
+		}
 	}
 	
 	public double[] getBattery()
 	{
-		//	when an end-of-file is encountered, return the last valid battery reading rather than zero
-		int numPoints = logData.size();
-		double[] data = new double[numPoints];
-		// just in case there is only one data point and that is PRESSURE_EMPTY_DATA (in which case 0.0 is a reasonable value)
-		double lastVoltage = 0.0; 
-		for (int i = 0; i < numPoints; i++) 
-		{
-			if (logData.get(i).pressure != PRESSURE_EMPTY_DATA)
-			{
-				data[i] = logData.get(i).battery;
-				lastVoltage = data[i];
-			}
-			else
-			{
-				//	if there is no real data, use the last good value
-				data[i] = lastVoltage;
-			}
-		}
-		return data;
+		deriveSeries();
+		return batterySeries;
 	}
 
 	public double[] getTemperature() {
-		//	when an end-of-file is encountered, return the last valid temperature reading rather than zero
+		deriveSeries();
+		return temperatureSeries;
+	}
+
+	public double[] getServo()
+	{
+		deriveSeries();
+		return servoSeries;
+	}
+	
+	// returns the _indices_ of the end of file markers
+	public List<Integer> getEOFIndices() {
+		deriveSeries();
+		return eofIndices;
+	}
+	
+	// the recording segments in the log. A new index is made when the log changes.
+	public SegmentIndex getSegmentIndex() {
+		deriveSeries();
+		return segmentIndex;
+	}
+	
+	// the index of the entry at time t seconds, clamped to the log.
+	public int indexAtTime(double t) {
+		int i = (int) (t / logInterval);
+		return Math.max(0, Math.min(i, logData.size()));
+	}
+	
+	// the segment that's being recorded at time t seconds, or -1 if there isn't one.
+	public int segmentAtTime(double t) {
+		return getSegmentIndex().segmentAt(indexAtTime(t));
+	}
+	
+	// works out the battery, temperature and servo series and indexes the segments,
+	// all from one read of the entries. They're kept until the log changes.
+	private synchronized void deriveSeries()
+	{
+		if (seriesValid) return;
 		int numPoints = logData.size();
-		double[] data = new double[numPoints];
-		
-		// just in case there is only one data point and that is PRESSURE_EMPTY_DATA (in which case 0.0 is a reasonable value)
+		long[] pressures = new long[numPoints];
+		double[] battery = new double[numPoints];
+		double[] temperature = new double[numPoints];
+		int[] servo = new int[numPoints];
+		logData.getValues(0, numPoints, pressures, temperature, battery, servo);
+		double[] servoData = new double[numPoints];
+		//	when an end-of-file is encountered, use the last valid battery and temperature
+		//	readings rather than zero. Just in case there is only one data point and that is
+		//	PRESSURE_EMPTY_DATA, 0.0 is a reasonable value to start with.
+		double lastVoltage = 0.0; 
 		double lastTemperature = 0.0; 
 		for (int i = 0; i < numPoints; i++) 
 		{
-			if (logData.get(i).pressure != PRESSURE_EMPTY_DATA)
+			if (pressures[i] != PRESSURE_EMPTY_DATA)
 			{
-				data[i] = logData.get(i).temperature;
-				lastTemperature = data[i];
+				lastVoltage = battery[i];
+				lastTemperature = temperature[i];
+				servoData[i] = servo[i];
 			}
 			else
 			{
-				//	if there is no real data, use the last good value
-				data[i] = lastTemperature;
+				battery[i] = lastVoltage;
+				temperature[i] = lastTemperature;
 			}
 		}
-		
-		return data;
-	}
-
-	public double[] getServo()
-	{
-		int numPoints = logData.size();
-		double[] data = new double[numPoints];
-		for (int i = 0; i < numPoints; i++) data[i] = logData.get(i).pressure != PRESSURE_EMPTY_DATA ? logData.get(i).servo : 0;
-		return data;
+		batterySeries = battery;
+		temperatureSeries = temperature;
+		servoSeries = servoData;
+		segmentIndex = new SegmentIndex(pressures, BASE_PRESSURE_SAMPLES);
+		List<Integer> eofs = new ArrayList<Integer>(segmentIndex.getEOFCount());
+		for (int i : segmentIndex.getEOFIndices()) eofs.add(i);
+		eofIndices = Collections.unmodifiableList(eofs);
+		seriesValid = true;
 	}
 	
-	// returns the _indices_ of the end of file markers
-	public List<Integer> getEOFIndices() {
-		int numPoints = logData.size();
-		List<Integer> data = new ArrayList<Integer>();
-		for (int i = 0; i < numPoints; i++) if (logData.get(i).pressure == PRESSURE_EMPTY_DATA) data.add(i);
-		
-		return data;
+	private synchronized void invalidateSeries()
+	{
+		seriesValid = false;
 	}
 	
 	public String rawDataToString(int lower, int upper) {
@@ -166,7 +379,7 @@ public class FlightLog {
 		StringBuilder sb = new StringBuilder();
 		// a simple header has the logging interval in it
 		sb.append("#logInterval: " + logInterval + "\r\n");
-		for (int i = lower; i < upper; i++) sb.append(logData.get(i).rawDataToString() + "\r\n");
+		for (int i = lower; i < upper; i++) sb.append(get(i).rawDataToString() + "\r\n");
 		return sb.toString();
 	}
 
@@ -174,31 +387,119 @@ public class FlightLog {
 		return rawDataToString(0, logData.size());
 	}
 	
+	// writes the same text as rawDataToString(lower, upper) into the channel, a buffer
+	// at a time, so the text is never all held in memory. The channel isn't closed.
+	public void writeRawData(WritableByteChannel channel, int lower, int upper) throws IOException {
+		if (lower < 0) lower = 0;
+		if (upper > logData.size() - 1) upper = logData.size() - 1;
+		RawDataWriter writer = new RawDataWriter(channel);
+		writer.writeHeader("#logInterval: " + logInterval);
+		int block = Math.max(0, Math.min(upper - lower, 4096));
+		long[] pressures = new long[block];
+		double[] temperatures = new double[block];
+		double[] batteries = new double[block];
+		int[] servos = new int[block];
+		for (int from = lower; from < upper; from += block) {
+			int count = Math.min(block, upper - from);
+			logData.getValues(from, count, pressures, temperatures, batteries, servos);
+			for (int i = 0; i < count; i++) writer.writeEntry(pressures[i], temperatures[i], batteries[i], servos[i]);
+		}
+		writer.flush();
+	}
+	
+	public void writeRawData(WritableByteChannel channel) throws IOException {
+		writeRawData(channel, 0, logData.size());
+	}
+	
 	// this mangles the data into the upload format - pretty cheezy hack
 	public String rawDataToUploadString(int lower, int upper) {
 		if (lower < 0) lower = 0;
 		if (upper > logData.size() - 1) upper = logData.size() - 1;
 		StringBuilder sb = new StringBuilder();
-		for (int i = lower; i < upper; i++) sb.append(logData.get(i).rawDataToUploadString() + "\r\n");
+		for (int i = lower; i < upper; i++) sb.append(get(i).rawDataToUploadString() + "\r\n");
 		return sb.toString();
 	}
 	
 	public void fromRawData(String rawData) throws IOException {
-		BufferedReader br = new BufferedReader(new StringReader(rawData));
+		fromRawData(new StringReader(rawData));
+	}
+	
+	// reads the text format a line at a time, so the whole file is never held in memory.
+	public void fromRawData(Reader reader) throws IOException {
 		Vector<String> headerLines = new Vector<String>();
-		String line;
-		while ((line = br.readLine()) != null) {
-			if (line.startsWith("#")) headerLines.add(line.substring(1));
-			else {
-				LogEntry le = new LogEntry();
-				le.fromRawData(line);
-				logData.add(le);
+		readRawData(reader, headerLines);
+		rawDataAdded(headerLines);
+	}
+	
+	// adds the entries in the text format, collecting the header lines, but doesn't work
+	// anything out from them.
+	void readRawData(Reader reader, List<String> headerLines) throws IOException {
+		// the lines are collected in one builder and parsed from there, and the store
+		// copies the values out of the entry, so nothing is allocated for each line. Lines
+		// end with \n, \r or \r\n, as they do for BufferedReader.readLine().
+		char[] buffer = new char[8192];
+		StringBuilder line = new StringBuilder(64);
+		RawDataParser parser = new RawDataParser();
+		LogEntry le = new LogEntry();
+		boolean skipNewline = false;
+		int read;
+		while ((read = reader.read(buffer)) != -1) {
+			for (int i = 0; i < read; i++) {
+				char c = buffer[i];
+				if (skipNewline) {
+					skipNewline = false;
+					if (c == '\n') continue;
+				}
+				if (c == '\n' || c == '\r') {
+					rawDataLineRead(line, headerLines, parser, le);
+					line.setLength(0);
+					skipNewline = (c == '\r');
+				}
+				else line.append(c);
 			}
 		}
-		calculateAltitudes();
+		if (line.length() > 0) rawDataLineRead(line, headerLines, parser, le);
+	}
+	
+	private void rawDataLineRead(StringBuilder line, List<String> headerLines, RawDataParser parser, LogEntry le) {
+		if (line.length() > 0 && line.charAt(0) == '#') headerLines.add(line.substring(1));
+		else {
+			parser.parse(line, le);
+			appendableStore().add(le);
+		}
+	}
+	
+	// brings the log up to date once entries have been read in the text format.
+	void rawDataAdded(List<String> headerLines) {
+		invalidateSeries();
+		// if the log already had data, only the new entries need their altitudes
+		updateAltitudes();
 		// find the logging interval, if present - otherwise default is used
 		for (String l : headerLines) {
 			if (l.startsWith("logInterval")) logInterval = Double.parseDouble(l.substring(14));
 		}
 	}
+	
+	// adds all the entries of another log to the end of this one. Their altitudes
+	// aren't worked out.
+	void addEntries(FlightLog other) {
+		int numPoints = other.size();
+		int block = Math.min(numPoints, 4096);
+		long[] pressures = new long[block];
+		double[] temperatures = new double[block];
+		double[] batteries = new double[block];
+		int[] servos = new int[block];
+		LogEntry le = new LogEntry();
+		for (int from = 0; from < numPoints; from += block) {
+			int count = Math.min(block, numPoints - from);
+			other.logData.getValues(from, count, pressures, temperatures, batteries, servos);
+			for (int i = 0; i < count; i++) {
+				le.pressure = pressures[i];
+				le.temperature = temperatures[i];
+				le.battery = batteries[i];
+				le.servo = servos[i];
+				appendableStore().add(le);
+			}
+		}
+	}
 }
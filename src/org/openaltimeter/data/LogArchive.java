@@ -0,0 +1,372 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A compressed file format for keeping logs long term. The records are split into blocks,
+// and within each block every channel - pressure, temperature, battery and servo, as the
+// logger stores them - is written as the differences between one entry and the next.
+// Pressure only changes by a few pascals from one entry to the next, so its differences
+// nearly always fit in a byte as zig-zag varints, and the other channels hardly change,
+// so their runs of zero differences are each written as a single count. The blocks can
+// also be deflated. Each block is coded on its own, and the header has an index of where
+// they are, so any block can be read without decoding the rest of the file.
+//
+// The header (big-endian) has a magic number, the format version, the size of the
+// header, whether the blocks are deflated, the number of records, the number in each
+// block, the logging interval in s, the device and firmware version, the indices of the
+// EOF markers, so the segments can be found without reading any blocks, and for each
+// block its offset from the end of the header, its size in the file and its coded size.
+public class LogArchive {
+
+	public static final String EXTENSION = "oaarchive";
+
+	private static final int MAGIC = 0x4F414C41;
+	private static final String CORRUPT = "Corrupt log archive.";
+	private static final int VERSION = 1;
+	private static final int SIZE = LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+	private static final int BLOCK_SIZE = 4096;
+	private static final int CHANNELS = 4;
+	// each value in a block takes no more than a varint, which is at most 5 bytes.
+	private static final int MAX_VARINT_SIZE = 5;
+
+	private final RandomAccessFile file;
+	private final int headerSize;
+	private final boolean deflated;
+	private final int numberOfRecords;
+	private final int blockSize;
+	public final double logInterval;
+	public final String device;
+	public final String firmwareVersion;
+	private final int[] eofIndices;
+	private final long[] blockOffsets;
+	private final int[] blockLengths;
+	private final int[] codedLengths;
+
+	// opens an archive to read blocks from it. Only the header is read. None of the
+	// counts and lengths in it are trusted until they've been checked against each
+	// other and the size of the file, so a damaged archive can't cause a huge or
+	// negative allocation.
+	public LogArchive(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			long size = file.length();
+			if (size < 12 || file.readInt() != MAGIC) throw new IOException("Not a log archive.");
+			int version = file.readInt();
+			if (version > VERSION) throw new IOException("The archive was saved by a newer version of the downloader.");
+			headerSize = file.readInt();
+			deflated = file.readBoolean();
+			numberOfRecords = file.readInt();
+			blockSize = file.readInt();
+			if (headerSize < 12 || headerSize > size || numberOfRecords < 0 || numberOfRecords > Integer.MAX_VALUE / SIZE
+					|| blockSize <= 0)
+				throw new IOException(CORRUPT);
+			logInterval = file.readDouble();
+			device = file.readUTF();
+			firmwareVersion = file.readUTF();
+			int eofCount = file.readInt();
+			if (eofCount < 0 || eofCount > numberOfRecords || eofCount * 4L > headerSize - file.getFilePointer())
+				throw new IOException(CORRUPT);
+			eofIndices = new int[eofCount];
+			for (int i = 0; i < eofIndices.length; i++) {
+				eofIndices[i] = file.readInt();
+				if (eofIndices[i] < 0 || eofIndices[i] >= numberOfRecords) throw new IOException(CORRUPT);
+			}
+			int blockCount = file.readInt();
+			if (blockCount != (int)(((long)numberOfRecords + blockSize - 1) / blockSize)
+					|| blockCount * 16L > headerSize - file.getFilePointer())
+				throw new IOException(CORRUPT);
+			blockOffsets = new long[blockCount];
+			blockLengths = new int[blockCount];
+			codedLengths = new int[blockCount];
+			for (int b = 0; b < blockCount; b++) {
+				blockOffsets[b] = file.readLong();
+				blockLengths[b] = file.readInt();
+				codedLengths[b] = file.readInt();
+				long records = Math.min(blockSize, numberOfRecords - (long)b * blockSize);
+				if (blockOffsets[b] < 0 || blockLengths[b] < 0 || headerSize + blockOffsets[b] + blockLengths[b] > size
+						|| codedLengths[b] < 0 || codedLengths[b] > records * CHANNELS * MAX_VARINT_SIZE)
+					throw new IOException(CORRUPT);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public int getNumberOfRecords() {
+		return numberOfRecords;
+	}
+
+	public int getBlockCount() {
+		return blockOffsets.length;
+	}
+
+	// the index of the first record in the block.
+	public int getBlockStart(int block) {
+		return block * blockSize;
+	}
+
+	public int getBlockFor(int record) {
+		return record / blockSize;
+	}
+
+	public int[] getEOFIndices() {
+		return eofIndices.clone();
+	}
+
+	// reads and decodes one block, giving its records in the logger's storage format.
+	public byte[] readBlock(int block) throws IOException {
+		byte[] stored = new byte[blockLengths[block]];
+		file.seek(headerSize + blockOffsets[block]);
+		file.readFully(stored);
+		byte[] coded = stored;
+		if (deflated) {
+			coded = new byte[codedLengths[block]];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(stored);
+				if (inflater.inflate(coded) != coded.length) throw new IOException("Block " + block + " is damaged.");
+			} catch (DataFormatException e) {
+				throw new IOException("Block " + block + " is damaged.");
+			} finally {
+				inflater.end();
+			}
+		}
+		int count = Math.min(blockSize, numberOfRecords - getBlockStart(block));
+		return decodeBlock(coded, count);
+	}
+
+	// reads the records first..first + count - 1 as a log, decoding only the blocks they're in.
+	public FlightLog read(int first, int count) throws IOException {
+		if (first < 0 || count < 0 || first + count > numberOfRecords) throw new IndexOutOfBoundsException();
+		byte[] image = new byte[count * SIZE];
+		int record = first;
+		while (record < first + count) {
+			int block = getBlockFor(record);
+			byte[] records = readBlock(block);
+			int from = record - getBlockStart(block);
+			int n = Math.min(records.length / SIZE - from, first + count - record);
+			System.arraycopy(records, from * SIZE, image, (record - first) * SIZE, n * SIZE);
+			record += n;
+		}
+		FlightLog log = FlightLog.fromRawImage(image, count);
+		log.logInterval = logInterval;
+		log.device = device;
+		log.firmwareVersion = firmwareVersion;
+		log.calculateAltitudes();
+		return log;
+	}
+
+	public static FlightLog load(File f) throws IOException {
+		LogArchive archive = new LogArchive(f);
+		try {
+			return archive.read(0, archive.getNumberOfRecords());
+		} finally {
+			archive.close();
+		}
+	}
+
+	public static boolean isLogArchive(File f) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "r");
+			try {
+				return file.length() >= 4 && file.readInt() == MAGIC;
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// saves the entries lower..upper - 1 of the log. As with BinaryLogFile, the log must
+	// be able to be stored exactly in the logger's format.
+	public static void save(File f, FlightLog log, int lower, int upper, boolean deflate) throws IOException {
+		if (lower < 0) lower = 0;
+		if (upper > log.size()) upper = log.size();
+		byte[] records = BinaryLogFile.toRecords(log, lower, upper);
+		int numberOfRecords = records.length / SIZE;
+		int[] eofs = BinaryLogFile.segmentsOf(records).getEOFIndices();
+
+		int blockCount = (numberOfRecords + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		long[] offsets = new long[blockCount];
+		int[] lengths = new int[blockCount];
+		int[] codedLengths = new int[blockCount];
+		Deflater deflater = deflate ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+		try {
+			for (int b = 0; b < blockCount; b++) {
+				int first = b * BLOCK_SIZE;
+				byte[] coded = encodeBlock(records, first, Math.min(BLOCK_SIZE, numberOfRecords - first));
+				byte[] stored = coded;
+				if (deflate) stored = deflate(deflater, coded);
+				offsets[b] = blocks.size();
+				lengths[b] = stored.length;
+				codedLengths[b] = coded.length;
+				blocks.write(stored);
+			}
+		} finally {
+			if (deflater != null) deflater.end();
+		}
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeBoolean(deflate);
+		header.writeInt(numberOfRecords);
+		header.writeInt(BLOCK_SIZE);
+		header.writeDouble(log.logInterval);
+		header.writeUTF(log.device);
+		header.writeUTF(log.firmwareVersion);
+		header.writeInt(eofs.length);
+		for (int eof : eofs) header.writeInt(eof);
+		header.writeInt(blockCount);
+		for (int b = 0; b < blockCount; b++) {
+			header.writeLong(offsets[b]);
+			header.writeInt(lengths[b]);
+			header.writeInt(codedLengths[b]);
+		}
+		header.close();
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// magic, version and header size come first
+			out.writeInt(12 + headerBytes.size());
+			headerBytes.writeTo(out);
+			blocks.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void save(File f, FlightLog log, boolean deflate) throws IOException {
+		save(f, log, 0, log.size(), deflate);
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] data) {
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+		byte[] buffer = new byte[4096];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	// the value of a channel in the record at os, as the logger stores it.
+	private static int channelValue(byte[] records, int os, int channel) {
+		if (channel == 0) return (short)((records[os] & 0xFF) | (records[os + 1] << 8));
+		return records[os + channel + 1] & 0xFF;
+	}
+
+	// each channel in turn is coded as the differences from one record to the next,
+	// starting from zero, so the block doesn't depend on any other. A difference is
+	// written as its zig-zag value shifted up by one, and a run of zero differences as
+	// its length shifted up by one with the bottom bit set.
+	private static byte[] encodeBlock(byte[] records, int first, int count) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(count * 2);
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			int previous = 0;
+			int run = 0;
+			for (int i = first; i < first + count; i++) {
+				int value = channelValue(records, i * SIZE, channel);
+				int difference = value - previous;
+				previous = value;
+				if (difference == 0) {
+					run++;
+					continue;
+				}
+				if (run > 0) writeVarint(out, (run << 1) | 1);
+				run = 0;
+				writeVarint(out, ((difference << 1) ^ (difference >> 31)) << 1);
+			}
+			if (run > 0) writeVarint(out, (run << 1) | 1);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] decodeBlock(byte[] coded, int count) throws IOException {
+		byte[] records = new byte[count * SIZE];
+		int[] pos = new int[1];
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			int value = 0;
+			int i = 0;
+			while (i < count) {
+				int token = readVarint(coded, pos);
+				if ((token & 1) != 0) {
+					// a run of records the same as the last
+					int run = token >>> 1;
+					if (run > count - i) throw new IOException("A block of the archive is damaged.");
+					for (int end = i + run; i < end; i++) putChannelValue(records, i * SIZE, channel, value);
+				} else {
+					int zigzag = token >>> 1;
+					value += (zigzag >>> 1) ^ -(zigzag & 1);
+					putChannelValue(records, i * SIZE, channel, value);
+					i++;
+				}
+			}
+		}
+		return records;
+	}
+
+	private static void putChannelValue(byte[] records, int os, int channel, int value) {
+		if (channel == 0) {
+			records[os] = (byte)value;
+			records[os + 1] = (byte)(value >> 8);
+		}
+		else records[os + channel + 1] = (byte)value;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(byte[] data, int[] pos) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (pos[0] >= data.length) throw new IOException("A block of the archive is damaged.");
+			int b = data[pos[0]++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("A block of the archive is damaged.");
+	}
+}
@@ -52,23 +52,85 @@ public class LogEntry {
 		int batteryRaw = TypeConverter.byteToUnsignedByte(b[os + 3]);
 		int servoRaw = TypeConverter.byteToUnsignedByte(b[os + 4]);
 		// look out for empty entry
-		if ( (pressureRaw == -1) && (temperatureRaw == 255) && (batteryRaw == 255) )
+		if (isEmptyV1Entry(pressureRaw, temperatureRaw, batteryRaw))
 		{
 			le.pressure = -1;
 			le.temperature = -1;
 			le.battery = -1;
 			le.servo = -1;
 		} else {
-			le.pressure = (int)pressureRaw + 101325;
-			le.temperature = ((temperatureRaw * 2.5) - 150.0) / 10.0;
-			le.battery = 2.0 + (0.05 * (double)batteryRaw);
-			if (servoRaw == 0) le.servo = 0;
-			else le.servo = ((int)servoRaw * 8) + 500;
+			le.pressure = pressureFromV1(pressureRaw);
+			le.temperature = temperatureFromV1(temperatureRaw);
+			le.battery = batteryFromV1(batteryRaw);
+			le.servo = servoFromV1(servoRaw);
 		}
 		return le;
 	}
 	
-	public void fromRawData(String line) {
+	// the V1 transformations for each of the values, which are also used by the log
+	// stores that keep entries in this format. The single byte values are looked up
+	// in V1FormatDecoder's tables.
+	static boolean isEmptyV1Entry(int pressureRaw, int temperatureRaw, int batteryRaw)
+	{
+		return (pressureRaw == -1) && (temperatureRaw == 255) && (batteryRaw == 255);
+	}
+	
+	static long pressureFromV1(int pressureRaw)
+	{
+		return (int)pressureRaw + 101325;
+	}
+	
+	static double temperatureFromV1(int temperatureRaw)
+	{
+		return V1FormatDecoder.TEMPERATURE[temperatureRaw];
+	}
+	
+	static double batteryFromV1(int batteryRaw)
+	{
+		return V1FormatDecoder.BATTERY[batteryRaw];
+	}
+	
+	static int servoFromV1(int servoRaw)
+	{
+		return V1FormatDecoder.SERVO[servoRaw];
+	}
+	
+	// writes the entry into the logger's storage format. This is the inverse of
+	// logEntryFromBytes, although some precision is lost along the way.
+	public void toBytes(byte[] b, int os)
+	{
+		toV1ByteFormat(b, os);
+	}
+	
+	private void toV1ByteFormat(byte[] b, int os)
+	{
+		// the empty entry is all ones
+		if (pressure == -1) {
+			for (int i = 0; i < DATASTORE_LOG_ENTRY_SIZE; i++) b[os + i] = (byte)0xFF;
+			return;
+		}
+		int pressureRaw = (int)(pressure - 101325);
+		int temperatureRaw = clampToUnsignedByte(Math.round(((temperature * 10.0) + 150.0) / 2.5));
+		int batteryRaw = clampToUnsignedByte(Math.round((battery - 2.0) / 0.05));
+		int servoRaw = (servo == 0) ? 0 : clampToUnsignedByte(Math.round((servo - 500) / 8.0));
+		b[os + 0] = (byte)(pressureRaw & 0xFF);
+		b[os + 1] = (byte)((pressureRaw >> 8) & 0xFF);
+		b[os + 2] = (byte)temperatureRaw;
+		b[os + 3] = (byte)batteryRaw;
+		b[os + 4] = (byte)servoRaw;
+	}
+	
+	private static int clampToUnsignedByte(long i)
+	{
+		return (int)Math.max(0, Math.min(255, i));
+	}
+	
+	public void fromRawData(CharSequence line) {
+		new RawDataParser().parse(line, this);
+	}
+	
+	// the original parser, which RawDataParser falls back on for lines it doesn't handle.
+	void fromSplitRawData(String line) {
 		String[] splitLine = line.split("[: ]");
 		// try not to be fooled by blank lines etc
 		if (splitLine.length >= 9) {
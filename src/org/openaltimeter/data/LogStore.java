@@ -0,0 +1,44 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+// Holds the entries of a FlightLog. The values are given as they would be in a
+// LogEntry, and an empty entry (an EOF marker) has a pressure of
+// FlightLog.PRESSURE_EMPTY_DATA.
+public interface LogStore {
+
+	public int size();
+
+	public long getPressure(int i);
+
+	public double getTemperature(int i);
+
+	public double getBattery(int i);
+
+	public int getServo(int i);
+
+	// copies the values of count entries, starting at from, into the arrays. Any of
+	// the arrays can be null if those values aren't wanted.
+	public void getValues(int from, int count, long[] pressure, double[] temperature, double[] battery, int[] servo);
+
+	public void add(LogEntry entry);
+
+	// adds an entry in the logger's storage format.
+	public void add(byte[] b, int os);
+}
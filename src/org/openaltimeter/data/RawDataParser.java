@@ -0,0 +1,150 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+// Parses lines of the text format - "P: 101234 T: 21.5 B: 4.1 S: 0" - by scanning the
+// characters, rather than splitting the line with a regex and parsing the pieces. Nothing
+// is allocated, so one parser can get through a whole file without making any garbage.
+// Only lines in exactly the form we write are handled here, and only numbers that can be
+// worked out exactly are converted here; longer numbers go to Double.parseDouble, and
+// anything else is handed to LogEntry's original parser, so the results are always the
+// same as they were.
+class RawDataParser {
+
+	// the longest decimal mantissa that's always held exactly in a double.
+	private static final int MAX_EXACT_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_DIGITS + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	// where we've got to in the line, and the value of the last number read.
+	private int pos;
+	private long longValue;
+	private double doubleValue;
+
+	void parse(CharSequence line, LogEntry le) {
+		if (!parseExactForm(line, le)) le.fromSplitRawData(line.toString());
+	}
+
+	// parses the line if it's in the form we write, returning false if it isn't.
+	private boolean parseExactForm(CharSequence line, LogEntry le) {
+		pos = 0;
+		if (!field(line, 'P') || !readInt(line)) return false;
+		long pressure = longValue;
+		if (!separator(line) || !field(line, 'T') || !readDouble(line)) return false;
+		double temperature = doubleValue;
+		if (!separator(line) || !field(line, 'B') || !readDouble(line)) return false;
+		double battery = doubleValue;
+		int servo = 0;
+		if (!onlySpacesLeft(line)) {
+			if (!separator(line) || !field(line, 'S') || !readInt(line)) return false;
+			servo = (int)longValue;
+			if (!onlySpacesLeft(line)) return false;
+		}
+		le.pressure = pressure;
+		le.temperature = temperature;
+		le.battery = battery;
+		le.servo = servo;
+		return true;
+	}
+
+	// the name of a field and the colon and space after it.
+	private boolean field(CharSequence line, char name) {
+		if (pos + 3 > line.length()) return false;
+		if (line.charAt(pos) != name || line.charAt(pos + 1) != ':' || line.charAt(pos + 2) != ' ') return false;
+		pos += 3;
+		return true;
+	}
+
+	private boolean separator(CharSequence line) {
+		if (pos >= line.length() || line.charAt(pos) != ' ') return false;
+		pos++;
+		return true;
+	}
+
+	// trailing spaces are ignored, as they are when the line is split.
+	private boolean onlySpacesLeft(CharSequence line) {
+		for (int i = pos; i < line.length(); i++) if (line.charAt(i) != ' ') return false;
+		return true;
+	}
+
+	// reads an integer, as Integer.parseInt would, as long as it's no more than 9 digits.
+	private boolean readInt(CharSequence line) {
+		int length = line.length();
+		boolean negative = false;
+		if (pos < length && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+			negative = line.charAt(pos) == '-';
+			pos++;
+		}
+		int start = pos;
+		long value = 0;
+		while (pos < length) {
+			char c = line.charAt(pos);
+			if (c == ' ') break;
+			if (c < '0' || c > '9') return false;
+			value = value * 10 + (c - '0');
+			pos++;
+		}
+		int digits = pos - start;
+		if (digits == 0 || digits > 9) return false;
+		longValue = negative ? -value : value;
+		return true;
+	}
+
+	// reads a plain decimal number. If it has few enough digits, the mantissa and the power
+	// of ten are both exact, and a single division gives the correctly rounded value, just
+	// as Double.parseDouble would. Longer numbers - like the 2.0500000000000003 that a
+	// battery reading can print as - are given to Double.parseDouble. Exponents and so on
+	// aren't handled.
+	private boolean readDouble(CharSequence line) {
+		int length = line.length();
+		int start = pos;
+		boolean negative = false;
+		if (pos < length && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+			negative = line.charAt(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean point = false;
+		while (pos < length) {
+			char c = line.charAt(pos);
+			if (c == ' ') break;
+			if (c == '.' && !point) {
+				point = true;
+			} else if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point) fractionDigits++;
+			} else return false;
+			pos++;
+		}
+		if (digits == 0) return false;
+		if (digits > MAX_EXACT_DIGITS) {
+			doubleValue = Double.parseDouble(line.subSequence(start, pos).toString());
+			return true;
+		}
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		doubleValue = negative ? -value : value;
+		return true;
+	}
+}
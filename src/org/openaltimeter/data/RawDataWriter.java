@@ -0,0 +1,121 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Writes log entries in the text format straight into a channel. The lines are formatted
+// into one reusable buffer, which is written out whenever it fills, so the memory used
+// doesn't grow with the log. The text is exactly what LogEntry.rawDataToString() gives.
+// Temperature and battery readings are nearly always one of the values in the V1
+// tables, so the text of those is worked out once and copied from then on.
+class RawDataWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// more than enough room for any one line.
+	private static final int MAX_LINE_LENGTH = 256;
+	private static final byte[] PRESSURE = ascii("P: ");
+	private static final byte[] TEMPERATURE = ascii(" T: ");
+	private static final byte[] BATTERY = ascii(" B: ");
+	private static final byte[] SERVO = ascii(" S: ");
+	private static final byte[] NEWLINE = ascii("\r\n");
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	// the text of the values in the tables, filled in as they're used.
+	private final byte[][] temperatureText = new byte[256][];
+	private final byte[][] batteryText = new byte[256][];
+	// room to format a long, backwards.
+	private final byte[] digits = new byte[20];
+
+	RawDataWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	// header lines are short, so they're expected to fit in the buffer.
+	void writeHeader(String line) throws IOException {
+		byte[] b = ascii(line);
+		if (b.length + NEWLINE.length > buffer.remaining()) flush();
+		buffer.put(b);
+		buffer.put(NEWLINE);
+	}
+
+	void writeEntry(long pressure, double temperature, double battery, int servo) throws IOException {
+		if (buffer.remaining() < MAX_LINE_LENGTH) flush();
+		buffer.put(PRESSURE);
+		putLong(pressure);
+		buffer.put(TEMPERATURE);
+		buffer.put(temperatureText(temperature));
+		buffer.put(BATTERY);
+		buffer.put(batteryText(battery));
+		buffer.put(SERVO);
+		putLong(servo);
+		buffer.put(NEWLINE);
+	}
+
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	private byte[] temperatureText(double temperature) {
+		long raw = Math.round(((temperature * 10.0) + 150.0) / 2.5);
+		return tableText(temperature, raw, V1FormatDecoder.TEMPERATURE, temperatureText);
+	}
+
+	private byte[] batteryText(double battery) {
+		long raw = Math.round((battery - 2.0) / 0.05);
+		return tableText(battery, raw, V1FormatDecoder.BATTERY, batteryText);
+	}
+
+	// the bits are compared rather than the values, so that -0.0 isn't taken for 0.0.
+	private static byte[] tableText(double value, long raw, double[] table, byte[][] text) {
+		if (raw < 0 || raw >= table.length
+				|| Double.doubleToRawLongBits(table[(int)raw]) != Double.doubleToRawLongBits(value))
+			return ascii(Double.toString(value));
+		if (text[(int)raw] == null) text[(int)raw] = ascii(Double.toString(value));
+		return text[(int)raw];
+	}
+
+	private void putLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			buffer.put(ascii(Long.toString(value)));
+			return;
+		}
+		if (value < 0) {
+			buffer.put((byte)'-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		buffer.put(digits, i, digits.length - i);
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) b[i] = (byte)s.charAt(i);
+		return b;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// A log store that reads its entries straight out of an image in the logger's
+// storage format, decoding each value when it's asked for. Nothing is unpacked up
+// front, so opening a log costs nothing and it takes no more memory than the image
+// itself. The image is used as it is, not copied, so it mustn't be changed after the
+// store is made. Entries can't be added, but the store can be copied into one that
+// takes them.
+public class RawImageLogStore implements LogStore {
+
+	private static final int SIZE = LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+
+	private final ByteBuffer image;
+	private final int size;
+
+	public RawImageLogStore(byte[] image, int numberOfRecords) {
+		this(ByteBuffer.wrap(image, 0, numberOfRecords * SIZE));
+	}
+
+	// the store holds the records between the buffer's position and its limit.
+	public RawImageLogStore(ByteBuffer image) {
+		this.image = image.slice().order(ByteOrder.LITTLE_ENDIAN);
+		size = this.image.remaining() / SIZE;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getPressure(int i) {
+		int os = i * SIZE;
+		if (isEmpty(os)) return FlightLog.PRESSURE_EMPTY_DATA;
+		return LogEntry.pressureFromV1(image.getShort(os));
+	}
+
+	public double getTemperature(int i) {
+		int os = i * SIZE;
+		if (isEmpty(os)) return -1;
+		return LogEntry.temperatureFromV1(unsignedByte(os + 2));
+	}
+
+	public double getBattery(int i) {
+		int os = i * SIZE;
+		if (isEmpty(os)) return -1;
+		return LogEntry.batteryFromV1(unsignedByte(os + 3));
+	}
+
+	public int getServo(int i) {
+		int os = i * SIZE;
+		if (isEmpty(os)) return -1;
+		return LogEntry.servoFromV1(unsignedByte(os + 4));
+	}
+
+	public void getValues(int from, int count, long[] pressure, double[] temperature, double[] battery, int[] servo) {
+		V1FormatDecoder.decode(image, from, count, pressure, temperature, battery, servo, 0);
+	}
+
+	public ColumnarLogStore toColumnarLogStore() {
+		ColumnarLogStore store = new ColumnarLogStore();
+		byte[] record = new byte[SIZE];
+		for (int i = 0; i < size; i++) {
+			image.position(i * SIZE);
+			image.get(record);
+			store.add(record, 0);
+		}
+		image.position(0);
+		return store;
+	}
+
+	public void add(LogEntry entry) {
+		throw new UnsupportedOperationException("Entries can't be added to a raw image log.");
+	}
+
+	public void add(byte[] b, int os) {
+		throw new UnsupportedOperationException("Entries can't be added to a raw image log.");
+	}
+
+	private boolean isEmpty(int os) {
+		return LogEntry.isEmptyV1Entry(image.getShort(os), unsignedByte(os + 2), unsignedByte(os + 3));
+	}
+
+	private int unsignedByte(int os) {
+		return image.get(os) & 0xFF;
+	}
+}
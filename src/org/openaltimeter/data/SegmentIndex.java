@@ -0,0 +1,120 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.util.Arrays;
+
+// An index of the recording segments in a log - the runs of entries between the EOF
+// markers. It holds where each segment starts and ends, how many samples it has and
+// its base pressure, so a segment can be found from an entry's index with a binary
+// search rather than by scanning the log. It's made from the log's pressures, and
+// doesn't change, so a new one is needed when the log does.
+public class SegmentIndex {
+
+	// segment s runs from starts[s] up to, but not including, ends[s].
+	private final int[] starts;
+	private final int[] ends;
+	private final double[] basePressures;
+	private final int[] eofIndices;
+	private final int size;
+
+	// the base pressure of each segment is the average of its first basePressureSamples
+	// entries, as in FlightLog.calculateBasePressure().
+	SegmentIndex(long[] pressures, int basePressureSamples) {
+		size = pressures.length;
+		int eofCount = 0;
+		int segmentCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (pressures[i] == FlightLog.PRESSURE_EMPTY_DATA) eofCount++;
+			else if (i == 0 || pressures[i - 1] == FlightLog.PRESSURE_EMPTY_DATA) segmentCount++;
+		}
+		starts = new int[segmentCount];
+		ends = new int[segmentCount];
+		basePressures = new double[segmentCount];
+		eofIndices = new int[eofCount];
+		int s = 0;
+		int e = 0;
+		int i = 0;
+		while (i < size) {
+			if (pressures[i] == FlightLog.PRESSURE_EMPTY_DATA) {
+				eofIndices[e++] = i++;
+				continue;
+			}
+			int end = i;
+			double total = 0;
+			while (end < size && pressures[end] != FlightLog.PRESSURE_EMPTY_DATA) {
+				if (end - i < basePressureSamples) total += pressures[end];
+				end++;
+			}
+			starts[s] = i;
+			ends[s] = end;
+			basePressures[s] = total / Math.min(end - i, basePressureSamples);
+			s++;
+			i = end;
+		}
+	}
+
+	public int getSegmentCount() {
+		return starts.length;
+	}
+
+	public int getStart(int segment) {
+		return starts[segment];
+	}
+
+	// the index just past the segment's last entry.
+	public int getEnd(int segment) {
+		return ends[segment];
+	}
+
+	public int getSampleCount(int segment) {
+		return ends[segment] - starts[segment];
+	}
+
+	public double getBasePressure(int segment) {
+		return basePressures[segment];
+	}
+
+	// the segment that the entry at index is in, or -1 if it's an EOF marker or outside
+	// the log.
+	public int segmentAt(int index) {
+		if (index < 0 || index >= size) return -1;
+		int s = Arrays.binarySearch(starts, index);
+		if (s < 0) s = -s - 2;
+		if (s < 0 || index >= ends[s]) return -1;
+		return s;
+	}
+
+	// the first segment that starts at or after index, or -1 if there isn't one. Handy
+	// for skipping forward over EOF markers.
+	public int segmentFrom(int index) {
+		int s = Arrays.binarySearch(starts, Math.max(index, 0));
+		if (s < 0) s = -s - 1;
+		return (s < starts.length) ? s : -1;
+	}
+
+	// the indices of the EOF markers, in order.
+	public int[] getEOFIndices() {
+		return eofIndices.clone();
+	}
+
+	public int getEOFCount() {
+		return eofIndices.length;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Loads logs in the text format straight from the file, rather than reading the whole
+// file into a string first. Big files can be parsed in parallel: the file is split into
+// chunks at line boundaries, each chunk is read and parsed into a log of its own, and
+// then the chunks' entries are added to the result in order. Only the chunks being
+// parsed are held as text, and the parsed entries are stored compactly, so it takes a
+// good deal less memory than the file would as a string.
+public class TextLogLoader {
+
+	// files bigger than this are parsed in parallel, in chunks of about this size.
+	private static final int PARALLEL_CHUNK_SIZE = 4 * 1024 * 1024;
+	// how far past a nominal chunk boundary we look for the end of the line.
+	private static final int LINE_SEARCH_SIZE = 256;
+
+	// parses in parallel if the file is big enough and there's more than one processor.
+	public static FlightLog load(File f) throws IOException {
+		boolean parallel = (f.length() > PARALLEL_CHUNK_SIZE) && (Runtime.getRuntime().availableProcessors() > 1);
+		return load(f, parallel);
+	}
+
+	public static FlightLog load(File f, boolean parallel) throws IOException {
+		FlightLog log = new FlightLog();
+		if (!parallel) {
+			InputStreamReader reader = new InputStreamReader(new FileInputStream(f));
+			try {
+				log.fromRawData(reader);
+			} finally {
+				reader.close();
+			}
+			return log;
+		}
+
+		FileInputStream in = new FileInputStream(f);
+		try {
+			final FileChannel channel = in.getChannel();
+			List<Long> boundaries = findChunkBoundaries(channel);
+			List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+			for (int i = 0; i < boundaries.size() - 1; i++) {
+				final long start = boundaries.get(i);
+				final long end = boundaries.get(i + 1);
+				tasks.add(new Callable<Chunk>() {
+					public Chunk call() throws IOException {
+						return parseChunk(channel, start, end);
+					}
+				});
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try {
+				List<String> headerLines = new Vector<String>();
+				for (Future<Chunk> result : executor.invokeAll(tasks)) {
+					Chunk chunk = result.get();
+					log.addEntries(chunk.log);
+					headerLines.addAll(chunk.headerLines);
+				}
+				log.rawDataAdded(headerLines);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while loading the log.");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			in.close();
+		}
+		return log;
+	}
+
+	// the entries parsed from one chunk of the file, and its header lines.
+	private static class Chunk {
+		final FlightLog log = new FlightLog();
+		final List<String> headerLines = new Vector<String>();
+	}
+
+	// the positions that the chunks start at, each just after a newline, followed by
+	// the end of the file.
+	private static List<Long> findChunkBoundaries(FileChannel channel) throws IOException {
+		long size = channel.size();
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+		ByteBuffer search = ByteBuffer.allocate(LINE_SEARCH_SIZE);
+		long position = PARALLEL_CHUNK_SIZE;
+		while (position < size) {
+			// find the next newline - if the lines are longer than we'd expect, keep looking
+			long boundary = -1;
+			while (boundary < 0 && position < size) {
+				search.clear();
+				int read = channel.read(search, position);
+				if (read <= 0) break;
+				for (int i = 0; i < read; i++) {
+					if (search.get(i) == '\n') {
+						boundary = position + i + 1;
+						break;
+					}
+				}
+				if (boundary < 0) position += read;
+			}
+			if (boundary < 0 || boundary >= size) break;
+			boundaries.add(boundary);
+			position = boundary + PARALLEL_CHUNK_SIZE;
+		}
+		boundaries.add(size);
+		return boundaries;
+	}
+
+	// reads the chunk between start and end, which holds whole lines, and parses it.
+	// The channel's positional reads are safe to use from several threads at once.
+	private static Chunk parseChunk(FileChannel channel, long start, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, start + buffer.position());
+			if (read < 0) throw new IOException("The file got shorter while it was being read.");
+		}
+		Chunk chunk = new Chunk();
+		InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(buffer.array()));
+		chunk.log.readRawData(reader, chunk.headerLines);
+		return chunk;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+    openaltimeter -- an open-source altimeter for RC aircraft
+    Copyright (C) 2010-2011  Jony Hudson, Jan Steidl
+    http://openaltimeter.org
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaltimeter.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Decodes records in the logger's V1 storage format in bulk. Temperature, battery
+// and servo are each stored as a single unsigned byte, so rather than working out
+// the transformation for every record they're looked up in tables that are
+// calculated once. See LogEntry for more about the format.
+public class V1FormatDecoder {
+
+	private static final int SIZE = LogEntry.DATASTORE_LOG_ENTRY_SIZE;
+
+	static final double[] TEMPERATURE = new double[256];
+	static final double[] BATTERY = new double[256];
+	static final int[] SERVO = new int[256];
+	static {
+		for (int raw = 0; raw < 256; raw++) {
+			TEMPERATURE[raw] = ((raw * 2.5) - 150.0) / 10.0;
+			BATTERY[raw] = 2.0 + (0.05 * (double)raw);
+			SERVO[raw] = (raw == 0) ? 0 : (raw * 8) + 500;
+		}
+	}
+
+	// decodes count records, starting with record number first in the image, into the
+	// arrays starting at dest. Any of the arrays can be null if those values aren't
+	// wanted. Empty entries decode as they do in a LogEntry, with all values -1.
+	public static void decode(byte[] image, int first, int count, long[] pressure, double[] temperature,
+			double[] battery, int[] servo, int dest) {
+		int os = first * SIZE;
+		int end = dest + count;
+		for (int d = dest; d < end; d++, os += SIZE) {
+			int pressureRaw = (short)((image[os] & 0xFF) | (image[os + 1] << 8));
+			int temperatureRaw = image[os + 2] & 0xFF;
+			int batteryRaw = image[os + 3] & 0xFF;
+			if (LogEntry.isEmptyV1Entry(pressureRaw, temperatureRaw, batteryRaw)) {
+				if (pressure != null) pressure[d] = FlightLog.PRESSURE_EMPTY_DATA;
+				if (temperature != null) temperature[d] = -1;
+				if (battery != null) battery[d] = -1;
+				if (servo != null) servo[d] = -1;
+				continue;
+			}
+			if (pressure != null) pressure[d] = pressureRaw + 101325;
+			if (temperature != null) temperature[d] = TEMPERATURE[temperatureRaw];
+			if (battery != null) battery[d] = BATTERY[batteryRaw];
+			if (servo != null) servo[d] = SERVO[image[os + 4] & 0xFF];
+		}
+	}
+
+	// as above, for an image in a buffer. Heap buffers are decoded straight from their array.
+	public static void decode(ByteBuffer image, int first, int count, long[] pressure, double[] temperature,
+			double[] battery, int[] servo, int dest) {
+		if (image.hasArray()) {
+			int offset = image.arrayOffset() + image.position();
+			if (offset % SIZE == 0) {
+				decode(image.array(), first + offset / SIZE, count, pressure, temperature, battery, servo, dest);
+				return;
+			}
+		}
+		// the pressure is a little-endian short, which the buffer can read for us
+		ByteBuffer b = image.order() == ByteOrder.LITTLE_ENDIAN ? image : image.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int os = first * SIZE;
+		int end = dest + count;
+		for (int d = dest; d < end; d++, os += SIZE) {
+			int pressureRaw = b.getShort(os);
+			int temperatureRaw = b.get(os + 2) & 0xFF;
+			int batteryRaw = b.get(os + 3) & 0xFF;
+			if (LogEntry.isEmptyV1Entry(pressureRaw, temperatureRaw, batteryRaw)) {
+				if (pressure != null) pressure[d] = FlightLog.PRESSURE_EMPTY_DATA;
+				if (temperature != null) temperature[d] = -1;
+				if (battery != null) battery[d] = -1;
+				if (servo != null) servo[d] = -1;
+				continue;
+			}
+			if (pressure != null) pressure[d] = pressureRaw + 101325;
+			if (temperature != null) temperature[d] = TEMPERATURE[temperatureRaw];
+			if (battery != null) battery[d] = BATTERY[batteryRaw];
+			if (servo != null) servo[d] = SERVO[b.get(os + 4) & 0xFF];
+		}
+	}
+}
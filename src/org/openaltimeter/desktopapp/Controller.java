@@ -22,8 +22,7 @@ import java.awt.Dialog.ModalityType;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -41,9 +40,17 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import org.openaltimeter.Altimeter;
 import org.openaltimeter.Altimeter.DownloadTimeoutException;
 import org.openaltimeter.Altimeter.NotAnOpenaltimeterException;
+import org.openaltimeter.AltimeterFinder;
+import org.openaltimeter.CaptureFile;
+import org.openaltimeter.DownloadCache;
+import org.openaltimeter.DownloadManager;
+import org.openaltimeter.DownloadManager.Session;
 import org.openaltimeter.comms.SerialLink;
+import org.openaltimeter.data.BinaryLogFile;
 import org.openaltimeter.data.FlightLog;
 import org.openaltimeter.data.HeightUnits;
+import org.openaltimeter.data.LogArchive;
+import org.openaltimeter.data.TextLogLoader;
 import org.openaltimeter.data.analysis.DLGFlight;
 import org.openaltimeter.data.analysis.DLGFlightAnalyser;
 import org.openaltimeter.desktopapp.MainWindow.DataState;
@@ -73,8 +80,30 @@ public class Controller {
 		this.hu = hu;
 	}
 
+	// downloads can be captured to disk as they arrive, so they can be recovered if the
+	// app dies before they're saved. Only the most recent download is kept.
+	private boolean captureDownloads;
+	private File captureFile;
+	public boolean getCaptureDownloads() {
+		return captureDownloads;
+	}
+	// unchanged downloads can be reused from a cache. The logger has no serial number, so
+	// the cache can only tell altimeters apart by port and firmware version, and two
+	// loggers on the same port with the same number of entries would get each other's
+	// data. So it's off unless it's asked for.
+	private boolean cacheDownloads;
+	private DownloadCache downloadCache;
+	public boolean getCacheDownloads() {
+		return cacheDownloads;
+	}
+	private DownloadCache activeDownloadCache() {
+		return cacheDownloads ? downloadCache : null;
+	}
+
 	private Preferences prefs;
 	private static final String PREF_HEIGHT_UNITS = "PREF_HEIGHT_UNITS";
+	private static final String PREF_CAPTURE_DOWNLOADS = "PREF_CAPTURE_DOWNLOADS";
+	private static final String PREF_CACHE_DOWNLOADS = "PREF_CACHE_DOWNLOADS";
 
 	public static void main(String[] args) {
 		try {
@@ -118,11 +147,18 @@ public class Controller {
 		prefs = Preferences.userNodeForPackage(this.getClass());
 		String s = prefs.get(PREF_HEIGHT_UNITS, "FT");
 		setHeightUnits(HeightUnits.valueOf(s));
+		captureDownloads = prefs.getBoolean(PREF_CAPTURE_DOWNLOADS, true);
+		cacheDownloads = prefs.getBoolean(PREF_CACHE_DOWNLOADS, false);
 		
 		window = new MainWindow();
 		window.controller = this;
 		window.initialise();
 		window.setTitle("openaltimeter " + versionNumber + " (" + firmwareVersionNumber + ")");
+		downloadCache = new DownloadCache(new File(System.getProperty("user.home"), ".openaltimeter/cache"));
+		// anything cached while the cache was off - or by older versions, which always
+		// cached - can't be trusted
+		if (!cacheDownloads) downloadCache.clear();
+		captureFile = new File(System.getProperty("user.home"), ".openaltimeter/last-download.capture");
 		altimeter = new Altimeter();
 		window.show();
 		buildSerialMenu();
@@ -137,6 +173,8 @@ public class Controller {
 	
 	private void savePreferences() {
 		prefs.put(PREF_HEIGHT_UNITS, getHeightUnits().name());
+		prefs.putBoolean(PREF_CAPTURE_DOWNLOADS, captureDownloads);
+		prefs.putBoolean(PREF_CACHE_DOWNLOADS, cacheDownloads);
 	}
 	
 	private void setConnectionState(ConnectionState state) {
@@ -168,17 +206,10 @@ public class Controller {
 				String comPort = window.getSelectedCOMPort();
 				try {
 					Controller.log("Connecting to serial port " + comPort + " (please wait) ...", "message");
-					int baudRate = usingOldOABaudRate ? 115200 : 57600;
+					int baudRate = usingOldOABaudRate ? Altimeter.OLD_BAUD_RATE : Altimeter.BAUD_RATE;
 					Controller.log(altimeter.connect(comPort, baudRate), "altimeter");
 					Controller.log("Connected.", "message");
 					setConnectionState(ConnectionState.CONNECTED);
-					// this is where we test for the firmware versions that are compatible with this
-					// release of the downloader. If they aren't compatible then we try and start the
-					// upgrade process.
-					if (!altimeter.firmwareVersion.equals("V8")) 
-					{
-						if (!adviseFirmwareUpgrade()) return;
-					}
 				} catch (NotAnOpenaltimeterException e) {
 					setConnectionState(ConnectionState.DISCONNECTED);
 					if (!usingOldOABaudRate) {
@@ -197,16 +228,54 @@ public class Controller {
 					setConnectionState(ConnectionState.DISCONNECTED);
 					return;
 				}
+				finishConnecting();
+			}
+		}).start();
+	}
+	
+	// tries all of the serial ports at once, and connects to the first altimeter found.
+	public void autoConnect() {
+		setConnectionState(ConnectionState.BUSY);
+		new Thread( new Runnable() {
+			public void run() {
+				Controller.log("Looking for the altimeter on all serial ports (please wait) ...", "message");
+				AltimeterFinder.Result result = null;
 				try {
-					Controller.log("Getting log information ...", "message");
-					Controller.log(altimeter.getFileInfo(), "altimeter");
-					Controller.log("Done.", "message");
-				} catch (IOException e) {
-					Controller.log("Unable to get file information from altimeter.", "error");
+					result = new AltimeterFinder().find(SerialLink.getSerialPorts());
+				} catch (InterruptedException e) {}
+				if (result == null) {
+					Controller.log("Unable to find an altimeter. Check that the openaltimeter is connected and powered.", "error");
+					setConnectionState(ConnectionState.DISCONNECTED);
+					return;
 				}
+				altimeter = result.altimeter;
+				usingOldOABaudRate = (result.baudRate == Altimeter.OLD_BAUD_RATE);
+				window.selectCOMPort(result.portName);
+				Controller.log(result.welcomeMessage, "altimeter");
+				Controller.log("Connected on serial port " + result.portName + ".", "message");
+				setConnectionState(ConnectionState.CONNECTED);
+				finishConnecting();
 			}
 		}).start();
 	}
+	
+	// checks the firmware version and prints the log information once connected.
+	private void finishConnecting() {
+		// this is where we test for the firmware versions that are compatible with this
+		// release of the downloader. If they aren't compatible then we try and start the
+		// upgrade process.
+		if (!altimeter.firmwareVersion.equals("V8")) 
+		{
+			if (!adviseFirmwareUpgrade()) return;
+		}
+		try {
+			Controller.log("Getting log information ...", "message");
+			Controller.log(altimeter.getFileInfo(), "altimeter");
+			Controller.log("Done.", "message");
+		} catch (IOException e) {
+			Controller.log("Unable to get file information from altimeter.", "error");
+		}
+	}
 
 
 	// close the serial port
@@ -256,12 +325,14 @@ public class Controller {
 			new Thread( new Runnable() {
 			public void run() {
 				Controller.log("Downloading altimeter data (please wait) ...", "message");
+				altimeter.captureFile = captureDownloads ? captureFile : null;
+				altimeter.downloadCache = activeDownloadCache();
 				try {
 					setFlightLog(altimeter.downloadData());
 				} catch (IOException e) {
 					Controller.log("Communications error while downloading data. Check the serial port.", "error");
 				} catch (DownloadTimeoutException e) {
-					Controller.log("Download started but did not complete in time. Check the serial port.", "error");
+					Controller.log("Download started but the altimeter stopped sending data. Check the serial port.", "error");
 				} finally {
 					window.setDataState(DataState.HAVE_DATA);
 					setConnectionState(ConnectionState.CONNECTED);
@@ -271,6 +342,57 @@ public class Controller {
 		}).start();
 	}
 
+	// the most altimeters that we'll download from at once, and how long each can stall.
+	private static final int MAX_CONCURRENT_DOWNLOADS = 8;
+	private static final int BATCH_STALL_TIMEOUT_MS = 5000;
+	
+	// downloads from every altimeter that's plugged in, saving each log in the given directory.
+	public void downloadAll() {
+		final File directory = window.showDirectoryDialog();
+		if (directory == null) return;
+		setConnectionState(ConnectionState.BUSY);
+		new Thread( new Runnable() {
+			public void run() {
+				List<String> serialPorts = SerialLink.getSerialPorts();
+				Controller.log("Downloading from all altimeters (please wait) ...", "message");
+				final DownloadManager manager = new DownloadManager(MAX_CONCURRENT_DOWNLOADS, BATCH_STALL_TIMEOUT_MS);
+				manager.downloadCache = activeDownloadCache();
+				DownloadManager.SessionListener listener = new DownloadManager.SessionListener() {
+					public void sessionChanged(Session session, String message, String style) {
+						if (message != null) Controller.log(session.portName + ": " + message, style);
+						// the progress bar shows the overall progress
+						List<Session> sessions = manager.getSessions();
+						int totalProgress = 0;
+						for (Session s : sessions) totalProgress += s.getProgress();
+						Controller.setProgress(totalProgress / sessions.size());
+					}
+				};
+				for (String port : serialPorts) manager.download(port, listener);
+				try {
+					manager.awaitCompletion();
+				} catch (InterruptedException e) {}
+				int downloaded = 0;
+				for (Session session : manager.getSessions()) {
+					if (session.getState() != DownloadManager.State.DONE) {
+						Controller.log(session.portName + ": " + session.getError(), "message");
+						continue;
+					}
+					File f = new File(directory, session.portName.replaceAll("[^A-Za-z0-9_.-]", "_") + ".txt");
+					try {
+						writeRawData(f, session.getFlightLog(), 0, session.getFlightLog().size());
+						Controller.log(session.portName + ": saved to " + f.getName(), "message");
+						downloaded++;
+					} catch (IOException e) {
+						Controller.log(session.portName + ": error writing file " + f.getName(), "error");
+					}
+				}
+				Controller.setProgress(100);
+				Controller.log("Downloaded " + downloaded + " logs.", "message");
+				setConnectionState(ConnectionState.DISCONNECTED);
+			}
+		}).start();
+	}
+
 	public void erase() {
 		if (window.showConfirmDialog("Are you sure you want to erase the altimeter's memory?", "Erase ..."))
 		{
@@ -278,6 +400,8 @@ public class Controller {
 			new Thread( new Runnable() {
 				public void run() {
 					Controller.log("Erasing altimeter (please wait) ...", "message");
+					// so that the erase clears the altimeter's cached download
+					altimeter.downloadCache = activeDownloadCache();
 					try {
 						log(altimeter.erase(), "altimeter");
 					} catch (IOException e) {
@@ -308,10 +432,16 @@ public class Controller {
 	public void saveRaw() {
 		File f = window.showRawSaveDialog();
 		if (f == null) return;
+		if (isBinaryLogFileName(f)) {
+			saveBinary(f, 0, flightLog.size());
+			return;
+		}
+		if (isLogArchiveName(f)) {
+			saveArchive(f, 0, flightLog.size());
+			return;
+		}
 		try {
-			FileWriter fw = new FileWriter(f);
-			fw.write(flightLog.rawDataToString());
-			fw.close();
+			writeRawData(f, flightLog, 0, flightLog.size());
 		} catch (IOException e) {
 			window.log("Error writing file. Please check the filename and try again.", "error");
 		}
@@ -321,39 +451,121 @@ public class Controller {
 		System.out.println("Lower: " + lower + " Upper: " + upper);
 		File f = window.showRawSaveDialog();
 		if (f == null) return;
+		if (isBinaryLogFileName(f)) {
+			saveBinary(f, flightLog.indexAtTime(lower), flightLog.indexAtTime(upper));
+			return;
+		}
+		if (isLogArchiveName(f)) {
+			saveArchive(f, flightLog.indexAtTime(lower), flightLog.indexAtTime(upper));
+			return;
+		}
 		try {
-			FileWriter fw = new FileWriter(f);
-			fw.write(flightLog.rawDataToString((int) (lower / flightLog.logInterval), (int) (upper / flightLog.logInterval)));
-			fw.close();
+			writeRawData(f, flightLog, flightLog.indexAtTime(lower), flightLog.indexAtTime(upper));
 		} catch (IOException e) {
 			window.log("Error writing file. Please check the filename and try again.", "error");
 		}		
 	}
 	
+	// saves the log in the text format, streaming it into the file.
+	private void writeRawData(File f, FlightLog log, int lower, int upper) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			log.writeRawData(out.getChannel(), lower, upper);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private boolean isBinaryLogFileName(File f) {
+		return f.getName().toLowerCase().endsWith("." + BinaryLogFile.EXTENSION);
+	}
+	
+	private void saveBinary(File f, int lower, int upper) {
+		try {
+			BinaryLogFile.save(f, flightLog, lower, upper);
+		} catch (IOException e) {
+			window.log("Error writing file: " + e.getMessage() + " Try saving it as a text file instead.", "error");
+		}
+	}
+	
+	private boolean isLogArchiveName(File f) {
+		return f.getName().toLowerCase().endsWith("." + LogArchive.EXTENSION);
+	}
+	
+	// archives are always deflated - they're for keeping logs, so size matters most.
+	private void saveArchive(File f, int lower, int upper) {
+		try {
+			LogArchive.save(f, flightLog, lower, upper, true);
+		} catch (IOException e) {
+			window.log("Error writing file: " + e.getMessage() + " Try saving it as a text file instead.", "error");
+		}
+	}
+	
 	public void loadRawData() {
-		File f = window.showOpenDialog(new FileNameExtensionFilter("Text files", "txt"));
+		File f = window.showOpenDialog(new FileNameExtensionFilter("Log files", "txt", BinaryLogFile.EXTENSION, 
+				LogArchive.EXTENSION));
 		if (f == null) return;
-		StringBuilder fileStringBuilder = new StringBuilder();
-		try {
-			BufferedReader fr = new BufferedReader(new FileReader(f));
-			String line;
-			while ((line = fr.readLine()) != null) {
-				fileStringBuilder.append(line);
-				fileStringBuilder.append("\n");
+		if (LogArchive.isLogArchive(f)) {
+			try {
+				setFlightLog(LogArchive.load(f));
+				window.setDataState(DataState.HAVE_DATA);
+			} catch (IOException e) {
+				log("Unable to open file: " + e.getMessage(), "error");
 			}
-		} catch (IOException e) {
-			log("Unable to open file. Please check file is not open elsewhere and try again.", "error");
+			return;
+		}
+		// binary logs are read as they are rather than parsed
+		if (BinaryLogFile.isBinaryLogFile(f)) {
+			try {
+				setFlightLog(BinaryLogFile.load(f));
+				window.setDataState(DataState.HAVE_DATA);
+			} catch (IOException e) {
+				log("Unable to open file: " + e.getMessage(), "error");
+			}
+			return;
 		}
-		FlightLog fl = new FlightLog();
+		// text logs are parsed as they're read, and big ones in parallel
+		FlightLog fl;
 		try {
-			fl.fromRawData(fileStringBuilder.toString());
+			fl = TextLogLoader.load(f);
 		} catch (IOException e) {
+			log("Unable to open file. Please check file is not open elsewhere and try again.", "error");
+			return;
+		} catch (NumberFormatException e) {
 			log("Unable to parse file. Are you sure that this is a raw data file?", "error");
+			return;
 		}
 		setFlightLog(fl);
 		window.setDataState(DataState.HAVE_DATA);
 	}
 
+	// loads the download that was captured to disk, even if it didn't finish.
+	public void recoverLastDownload() {
+		if (!captureFile.exists()) {
+			log("There is no captured download to recover.", "error");
+			return;
+		}
+		try {
+			FlightLog fl = CaptureFile.load(captureFile);
+			setFlightLog(fl);
+			window.setDataState(DataState.HAVE_DATA);
+			log("Recovered " + fl.size() + " log entries from the last download.", "message");
+		} catch (IOException e) {
+			log("Unable to read the captured download.", "error");
+		}
+	}
+
+	public void captureDownloadsSelectedChange(boolean selected) {
+		captureDownloads = selected;
+	}
+
+	// when the cache is turned off it's emptied, so nothing stale is left in it for the
+	// next time it's turned on - an altimeter might be erased in the meantime.
+	public void cacheDownloadsSelectedChange(boolean selected) {
+		cacheDownloads = selected;
+		if (!selected) downloadCache.clear();
+	}
+
 	public void exit() {
 		window.close();
 		System.exit(0);
@@ -433,7 +645,11 @@ public class Controller {
 					log("Writing settings to altimeter ...", "message");
 					Settings settingsToWrite = settingsDialog.getSettings();
 					altimeter.settings = settingsToWrite;
-					altimeter.writeSettings();
+					if (!altimeter.writeSettings()) {
+						log("Error verifying altimeter settings. Please try saving again.", "error");
+						settingsDialog.enableButtons(true);
+						return;
+					}
 					log("Done.", "message");
 					log("Rebooting altimeter with new settings ...", "message");
 					altimeter.disconnect();
@@ -624,8 +840,8 @@ public class Controller {
 	}
 	
 	public void uploadSelection(double lowerBound, double upperBound) {
-		String dataToUpload = flightLog.rawDataToUploadString((int) (lowerBound / flightLog.logInterval), 
-				(int) (upperBound / flightLog.logInterval));
+		String dataToUpload = flightLog.rawDataToUploadString(flightLog.indexAtTime(lowerBound), 
+				flightLog.indexAtTime(upperBound));
 		try {
 			altimeter.upload(dataToUpload);
 		} catch (IOException e){
@@ -53,7 +53,9 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 import javax.swing.text.StyledDocument;
 
+import org.openaltimeter.data.BinaryLogFile;
 import org.openaltimeter.data.HeightUnits;
+import org.openaltimeter.data.LogArchive;
 import org.openaltimeter.desktopapp.Controller.ConnectionState;
 import org.openaltimeter.desktopapp.Controller.OS;
 
@@ -64,6 +66,8 @@ public class MainWindow {
 	JMenu mnSerialPort;
 	ButtonGroup serialMenuGroup;
 	JMenuItem mntmConnect;
+	JMenuItem mntmAutoConnect;
+	JMenuItem mntmDownloadAll;
 	JMenuItem mntmDisconnect;
 	JTextPane logTextPane;
 	JScrollPane scrollPane;
@@ -161,6 +165,14 @@ public class MainWindow {
 		});
 		mnFile.add(mntmLoadRawData);
 		
+		JMenuItem mntmRecoverLastDownload = new JMenuItem("Recover last download");
+		mntmRecoverLastDownload.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				controller.recoverLastDownload();
+			}
+		});
+		mnFile.add(mntmRecoverLastDownload);
+		
 		mnFile.addSeparator();
 		mntmSaveData.setEnabled(false);
 		mnFile.add(mntmSaveData);
@@ -303,6 +315,14 @@ public class MainWindow {
 		});
 		mnConnection.add(mntmConnect);
 
+		mntmAutoConnect = new JMenuItem("Find altimeter and connect");
+		mntmAutoConnect.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				controller.autoConnect();
+			}
+		});
+		mnConnection.add(mntmAutoConnect);
+
 		mntmDisconnect = new JMenuItem("Disconnect");
 		mntmDisconnect.setEnabled(false);
 		mntmDisconnect.addActionListener(new ActionListener() {
@@ -312,6 +332,16 @@ public class MainWindow {
 		});
 		mnConnection.add(mntmDisconnect);
 
+		mnConnection.addSeparator();
+
+		mntmDownloadAll = new JMenuItem("Download from all altimeters ...");
+		mntmDownloadAll.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				controller.downloadAll();
+			}
+		});
+		mnConnection.add(mntmDownloadAll);
+
 		JMenu mnLogger = new JMenu("Altimeter");
 		menuBar.add(mnLogger);
 
@@ -324,6 +354,24 @@ public class MainWindow {
 		});
 		mnLogger.add(mntmDownloadData);
 
+		final JCheckBoxMenuItem chckbxmntmCaptureDownloads = new JCheckBoxMenuItem("Capture downloads to disk");
+		chckbxmntmCaptureDownloads.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				controller.captureDownloadsSelectedChange(chckbxmntmCaptureDownloads.isSelected());
+			}
+		});
+		chckbxmntmCaptureDownloads.setSelected(controller.getCaptureDownloads());
+		mnLogger.add(chckbxmntmCaptureDownloads);
+
+		final JCheckBoxMenuItem chckbxmntmCacheDownloads = new JCheckBoxMenuItem("Reuse unchanged downloads (one altimeter per port)");
+		chckbxmntmCacheDownloads.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				controller.cacheDownloadsSelectedChange(chckbxmntmCacheDownloads.isSelected());
+			}
+		});
+		chckbxmntmCacheDownloads.setSelected(controller.getCacheDownloads());
+		mnLogger.add(chckbxmntmCacheDownloads);
+
 		mntmEraseLogger = new JMenuItem("Erase altimeter memory ...");
 		mntmEraseLogger.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
@@ -422,6 +470,16 @@ public class MainWindow {
 			item.setSelected(true);
 	}
 
+	public void selectCOMPort(final String portName) {
+		SwingUtilities.invokeLater( new Runnable() {
+			public void run() {
+				for (int i = 0; i < mnSerialPort.getItemCount(); i++)
+					if (mnSerialPort.getItem(i).getText().equals(portName))
+						mnSerialPort.getItem(i).setSelected(true);
+			}
+		});
+	}
+
 	public String getSelectedCOMPort() {
 		int itemCount = mnSerialPort.getItemCount();
 		String selectedPort = "";
@@ -437,6 +495,8 @@ public class MainWindow {
 				switch (state) {
 				case CONNECTED: 
 					mntmConnect.setEnabled(false);
+					mntmAutoConnect.setEnabled(false);
+					mntmDownloadAll.setEnabled(false);
 					mntmDisconnect.setEnabled(true);
 					mntmDownloadData.setEnabled(true);
 					mntmEraseLogger.setEnabled(true);
@@ -449,6 +509,8 @@ public class MainWindow {
 					break;
 				case DISCONNECTED: 
 					mntmConnect.setEnabled(true);
+					mntmAutoConnect.setEnabled(true);
+					mntmDownloadAll.setEnabled(true);
 					mntmDisconnect.setEnabled(false);
 					mntmDownloadData.setEnabled(false);
 					mntmEraseLogger.setEnabled(false);
@@ -461,6 +523,8 @@ public class MainWindow {
 					break;
 				case BUSY: 
 					mntmConnect.setEnabled(false);
+					mntmAutoConnect.setEnabled(false);
+					mntmDownloadAll.setEnabled(false);
 					mntmDisconnect.setEnabled(false);
 					mntmDownloadData.setEnabled(false);
 					mntmEraseLogger.setEnabled(false);
@@ -540,6 +604,10 @@ public class MainWindow {
 		if (filePath != null)
 			fc.setCurrentDirectory(filePath);
 		FileFilter filter= new FileNameExtensionFilter("Text file", "txt");
+		FileFilter binaryFilter = new FileNameExtensionFilter("Binary log file", BinaryLogFile.EXTENSION);
+		FileFilter archiveFilter = new FileNameExtensionFilter("Compressed log archive", LogArchive.EXTENSION);
+		fc.addChoosableFileFilter(archiveFilter);
+		fc.addChoosableFileFilter(binaryFilter);
 		fc.addChoosableFileFilter(filter);
 		if (fc.showSaveDialog(this.frmOpenaltimeter) == JFileChooser.APPROVE_OPTION)
 		{
@@ -549,6 +617,15 @@ public class MainWindow {
 				if (!selectedFile.getAbsolutePath().endsWith(".txt"))
 					selectedFile = new File(selectedFile.getAbsolutePath() + ".txt");
 			}
+			// and likewise for binary files
+			if (fc.getFileFilter() == binaryFilter) {
+				if (!selectedFile.getAbsolutePath().endsWith("." + BinaryLogFile.EXTENSION))
+					selectedFile = new File(selectedFile.getAbsolutePath() + "." + BinaryLogFile.EXTENSION);
+			}
+			if (fc.getFileFilter() == archiveFilter) {
+				if (!selectedFile.getAbsolutePath().endsWith("." + LogArchive.EXTENSION))
+					selectedFile = new File(selectedFile.getAbsolutePath() + "." + LogArchive.EXTENSION);
+			}
 			filePath = selectedFile.getParentFile();
 				
 			return selectedFile;
@@ -556,6 +633,22 @@ public class MainWindow {
 		else return null;
 	}
 
+	public File showDirectoryDialog()
+	{
+		JFileChooser fc = new JFileChooser();
+		if (filePath != null)
+			fc.setCurrentDirectory(filePath);
+		fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (fc.showSaveDialog(this.frmOpenaltimeter) == JFileChooser.APPROVE_OPTION)
+		{
+			File selectedFile = fc.getSelectedFile(); 
+			filePath = selectedFile;
+				
+			return selectedFile;
+		}
+		else return null;
+	}
+
 	public File showOpenDialog(FileFilter filter)
 	{
 		JFileChooser fc = new JFileChooser();